@@ -0,0 +1,38 @@
+package dev.jonathanb.cs386d.benchmarks;
+
+import dev.jonathanb.cs386d.BenchmarkQuery;
+import dev.jonathanb.cs386d.StatsLoader;
+import dev.jonathanb.cs386d.StatsSnapshotStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Freezes the stats of every JOB query into stats-cache.path. The loader merges each query's columns into the
+// existing snapshots, so after one pass the fixtures cover the whole benchmark.
+public class CaptureFixtures {
+    public static void main(String[] args) throws IOException, SQLException {
+        String url = args.length > 0 ? args[0] : "jdbc:postgresql://localhost:5432/";
+        StatsSnapshotStore store = StatsSnapshotStore.fromSystemProperties();
+        if (store == null) {
+            throw new IOException("Missing system property stats-cache.path");
+        }
+        String folder = System.getProperty("join-order-benchmark.path");
+        if (folder == null) {
+            throw new IOException("Missing system property join-order-benchmark.path");
+        }
+        List<Path> files;
+        try (Stream<Path> list = Files.list(Path.of(folder))) {
+            files = list.filter(file -> file.getFileName().toString().matches("\\d+[a-z]\\.sql")).sorted().toList();
+        }
+        try (StatsLoader loader = new StatsLoader(url, 3, store)) {
+            for (Path file : files) {
+                System.out.println("Capturing " + file.getFileName());
+                loader.load(BenchmarkQuery.parseFromString(Files.readString(file)));
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package dev.jonathanb.cs386d.benchmarks;
+
+import dev.jonathanb.cs386d.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+// Frozen inputs for the benchmarks: JOB queries from join-order-benchmark.path and their stats from the snapshots in
+// stats-cache.path (written by CaptureFixtures), so no database is needed while measuring.
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    static String queryText(String queryName) throws IOException {
+        String folder = System.getProperty("join-order-benchmark.path");
+        if (folder == null) {
+            throw new IOException("Missing system property join-order-benchmark.path");
+        }
+        return Files.readString(Path.of(folder, queryName + ".sql"));
+    }
+
+    static Map<TableRef, RelationStats> stats(BenchmarkQuery query) throws IOException {
+        StatsSnapshotStore store = StatsSnapshotStore.fromSystemProperties();
+        if (store == null) {
+            throw new IOException("Missing system property stats-cache.path");
+        }
+        Map<TableRef, RelationStats> stats = new HashMap<>();
+        for (TableRef relation : query.relations()) {
+            RelationStats relationStats = store.load(relation, null);
+            if (relationStats == null) {
+                throw new IllegalStateException("No stats fixture for " + relation.baseTable() + "; run CaptureFixtures first");
+            }
+            stats.put(relation, relationStats);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,31 @@
+package dev.jonathanb.cs386d.benchmarks;
+
+import dev.jonathanb.cs386d.BenchmarkQuery;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryParseBenchmark {
+    // A small query, a typical one and two of the largest.
+    @Param({"1a", "10a", "29a", "33c"})
+    public String query;
+
+    private String text;
+
+    @Setup
+    public void setup() throws IOException {
+        text = Fixtures.queryText(query);
+    }
+
+    @Benchmark
+    public BenchmarkQuery parse() {
+        return BenchmarkQuery.parseFromString(text);
+    }
+}
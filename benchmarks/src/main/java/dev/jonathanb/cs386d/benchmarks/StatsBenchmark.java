@@ -0,0 +1,94 @@
+package dev.jonathanb.cs386d.benchmarks;
+
+import dev.jonathanb.cs386d.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// The per-column estimates that the optimizer repeats for every candidate join. The columns are synthetic but shaped
+// like Postgres' defaults: 100 most common values with skewed frequencies and a 100-bucket histogram.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsBenchmark {
+    private static final int STATS_TARGET = 100;
+    private static final int COLUMNS = 12;
+
+    private ColumnStats left, right;
+    private RelationStats relation;
+    private ColumnSelectivity selectivity;
+    private List<Column> selected;
+    private String string;
+    private long number;
+
+    @Setup
+    public void setup() {
+        // Half of each side's common values are also common on the other side.
+        left = column(0, 1_000_000);
+        right = column(STATS_TARGET / 2, 200_000);
+
+        TableRef table = new TableRef("t", new Table("imdb", "title"));
+        Map<Column, ColumnStats> columns = new HashMap<>();
+        for (int i = 0; i < COLUMNS; i++) {
+            columns.put(new Column(table, "c" + i), i % 2 == 0 ? left : right);
+        }
+        relation = new RelationStats(2_500_000, columns);
+        selectivity = left.semijoin(right);
+        selected = List.of(new Column(table, "c0"));
+
+        string = "The Godfather";
+        number = 1_234_567;
+    }
+
+    private static ColumnStats column(int offset, long nDistinct) {
+        Map<HistogramValue, Double> mostCommon = new HashMap<>();
+        for (int i = 0; i < STATS_TARGET; i++) {
+            // Zipf-like, taking up about 30% of the rows in total.
+            mostCommon.put(HistogramValue.of((long) (offset + i)), 0.06 / (i + 1));
+        }
+        List<HistogramValue> bounds = new ArrayList<>();
+        for (int i = 0; i <= STATS_TARGET; i++) {
+            bounds.add(HistogramValue.of(offset + STATS_TARGET + i * (nDistinct / STATS_TARGET)));
+        }
+        return new ColumnStats(0.01, nDistinct, mostCommon, HistogramRange.makeRange(bounds, nDistinct - STATS_TARGET, 0.69));
+    }
+
+    @Benchmark
+    public ColumnSelectivity join() {
+        return left.join(right);
+    }
+
+    @Benchmark
+    public ColumnSelectivity semijoin() {
+        return left.semijoin(right);
+    }
+
+    // Reads every column back, since the selection itself is lazy.
+    @Benchmark
+    public long applySelect() {
+        long total = 0;
+        for (ColumnStats stats : relation.applySelect(selectivity, selected).columnStats().values()) {
+            total += stats.nDistinct();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public HistogramValue newStringValue() {
+        return new HistogramValue(string);
+    }
+
+    @Benchmark
+    public HistogramValue newNumberValue() {
+        return new HistogramValue(number);
+    }
+
+    @Benchmark
+    public HistogramValue internedStringValue() {
+        return HistogramValue.of(string);
+    }
+}
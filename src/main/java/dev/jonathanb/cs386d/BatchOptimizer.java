@@ -0,0 +1,184 @@
+package dev.jonathanb.cs386d;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.statement.Statement;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+// Optimizes a whole workload: every .sql file of a directory (named after the file), or every statement of a query
+// log (named after the log and numbered in order). Queries are parsed and optimized on a bounded pool of threads. In
+// between, the stats of all of them are loaded in one batch, so a table is only fetched once however many queries
+// use it. Each query's TTJ join tree is written as soon as that query is done, and a timing summary follows at the end.
+//
+// Usage: BatchOptimizer <query directory or log> <output directory> [threads]
+public class BatchOptimizer {
+    // metrics is null if the query couldn't be parsed, and failure is null if its plan was written.
+    public record Result(String name, long parseNanos, OptimizerMetrics metrics, Exception failure) {
+        long optimizeNanos() {
+            return metrics == null ? 0 : metrics.getNanos(OptimizerMetrics.Phase.PREDICATES) + metrics.getNanos(OptimizerMetrics.Phase.ENUMERATION);
+        }
+
+        long writeNanos() {
+            return metrics == null ? 0 : metrics.getNanos(OptimizerMetrics.Phase.OUTPUT);
+        }
+    }
+
+    private record Parsed(String name, BenchmarkQuery query, long parseNanos) {
+    }
+
+    private final StatsLoader loader;
+    private final ExecutorService executor;
+    private final Path outputDirectory;
+    private CostModel costModel = CostModel.C_OUT;
+
+    public BatchOptimizer(StatsLoader loader, ExecutorService executor, Path outputDirectory) {
+        this.loader = loader;
+        this.executor = executor;
+        this.outputDirectory = outputDirectory;
+    }
+
+    public void setCostModel(CostModel costModel) {
+        this.costModel = Objects.requireNonNull(costModel);
+    }
+
+    public static void main(String[] args) throws IOException, SQLException, JSQLParserException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: BatchOptimizer <query directory or log> <output directory> [threads]");
+            System.exit(1);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        Map<String, String> queries = readQueries(Path.of(args[0]));
+        Path outputDirectory = Path.of(args[1]);
+        Files.createDirectories(outputDirectory);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (StatsLoader loader = new StatsLoader("jdbc:postgresql://localhost:5432/", 3, StatsSnapshotStore.fromSystemProperties())) {
+            long start = System.nanoTime();
+            BatchOptimizer batch = new BatchOptimizer(loader, executor, outputDirectory);
+            batch.setCostModel(CostModel.fromSystemProperties());
+            List<Result> results = batch.run(queries);
+            printSummary(results, System.nanoTime() - start);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Query texts by name, in the order they should be reported in.
+    public static Map<String, String> readQueries(Path input) throws IOException, JSQLParserException {
+        Map<String, String> queries = new LinkedHashMap<>();
+        if (Files.isDirectory(input)) {
+            List<Path> files;
+            try (Stream<Path> list = Files.list(input)) {
+                files = list.filter(file -> file.getFileName().toString().endsWith(".sql")).sorted().toList();
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                queries.put(name.substring(0, name.length() - ".sql".length()), Files.readString(file));
+            }
+        } else {
+            String name = input.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+            int index = 1;
+            for (Statement statement : CCJSqlParserUtil.parseStatements(Files.readString(input))) {
+                queries.put(name + "_" + index++, statement.toString());
+            }
+        }
+        return queries;
+    }
+
+    public List<Result> run(Map<String, String> queries) throws SQLException, IOException, InterruptedException {
+        Map<String, Future<Parsed>> parsing = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : queries.entrySet()) {
+            parsing.put(entry.getKey(), executor.submit(() -> {
+                long start = System.nanoTime();
+                BenchmarkQuery query = BenchmarkQuery.parseFromString(entry.getValue());
+                return new Parsed(entry.getKey(), query, System.nanoTime() - start);
+            }));
+        }
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<Parsed> parsed = new ArrayList<>();
+        for (Map.Entry<String, Future<Parsed>> entry : parsing.entrySet()) {
+            try {
+                parsed.add(entry.getValue().get());
+                results.put(entry.getKey(), null);
+            } catch (ExecutionException e) {
+                results.put(entry.getKey(), new Result(entry.getKey(), 0, null, asException(e.getCause())));
+            }
+        }
+
+        long loadStart = System.nanoTime();
+        List<Map<TableRef, RelationStats>> stats = loader.loadAll(parsed.stream().map(Parsed::query).toList());
+        System.out.println("Loaded stats for " + parsed.size() + " queries in " + millis(System.nanoTime() - loadStart) + " ms");
+
+        CompletionService<Result> optimizing = new ExecutorCompletionService<>(executor);
+        for (int i = 0; i < parsed.size(); i++) {
+            Parsed query = parsed.get(i);
+            Map<TableRef, RelationStats> queryStats = stats.get(i);
+            optimizing.submit(() -> optimizeAndWrite(query, queryStats));
+        }
+        for (int i = 0; i < parsed.size(); i++) {
+            try {
+                Result result = optimizing.take().get();
+                results.put(result.name(), result);
+                System.out.println(result.failure() == null
+                        ? "Wrote " + result.name() + " (" + millis(result.optimizeNanos()) + " ms)"
+                        : "Failed " + result.name() + ": " + result.failure());
+            } catch (ExecutionException e) {
+                // optimizeAndWrite reports its own failures.
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return new ArrayList<>(results.values());
+    }
+
+    @SuppressWarnings("try")
+    private Result optimizeAndWrite(Parsed parsed, Map<TableRef, RelationStats> stats) {
+        BenchmarkQuery query = parsed.query();
+        OptimizerMetrics metrics = new OptimizerMetrics();
+        try {
+            JoinOptimizer optimizer = new JoinOptimizer();
+            optimizer.setCostModel(costModel);
+            OperationTree tree = optimizer.optimize(stats, query.predicates(), query.valuePredicates(), metrics);
+            try (OptimizerMetrics.Timer ignored = metrics.time(OptimizerMetrics.Phase.OUTPUT)) {
+                String json = loader.withConnection(conn -> TTJBenchmarkWriter.writeTree(query, "q" + parsed.name() + "_", tree, conn));
+                Files.write(Main.planStatisticsFile(outputDirectory, parsed.name()), List.of(json));
+            }
+        } catch (SQLException | IOException | RuntimeException e) {
+            return new Result(parsed.name(), parsed.parseNanos(), metrics, e);
+        }
+        return new Result(parsed.name(), parsed.parseNanos(), metrics, null);
+    }
+
+    private static Exception asException(Throwable cause) {
+        return cause instanceof Exception e ? e : new RuntimeException(cause);
+    }
+
+    public static void printSummary(List<Result> results, long wallNanos) {
+        System.out.printf("%-12s %10s %12s %10s %12s %16s%n", "query", "parse ms", "optimize ms", "write ms", "joins", "cost");
+        long parse = 0, optimize = 0, write = 0;
+        int failures = 0;
+        for (Result result : results) {
+            System.out.printf("%-12s %10.1f %12.1f %10.1f %12d %16s%n", result.name(), millis(result.parseNanos()),
+                    millis(result.optimizeNanos()), millis(result.writeNanos()),
+                    result.metrics() == null ? 0 : result.metrics().getJoinsComputed(),
+                    result.failure() == null ? String.format("%.1f", result.metrics().getCost()) : "FAILED");
+            parse += result.parseNanos();
+            optimize += result.optimizeNanos();
+            write += result.writeNanos();
+            if (result.failure() != null) failures++;
+        }
+        System.out.printf("%-12s %10.1f %12.1f %10.1f%n", "total", millis(parse), millis(optimize), millis(write));
+        System.out.printf("%d queries (%d failed) in %.1f ms%n", results.size(), failures, millis(wallNanos));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -27,6 +27,19 @@ public record BenchmarkQuery(Set<TableRef> relations, Set<JoinPredicate> predica
         return pseudoSql + ";";
     }
 
+    // The only columns the optimizer needs statistics for.
+    public Set<Column> referencedColumns() {
+        Set<Column> columns = new HashSet<>();
+        for (JoinPredicate predicate : predicates) {
+            columns.add(predicate.a());
+            columns.add(predicate.b());
+        }
+        for (ValuePredicate predicate : valuePredicates) {
+            columns.add(predicate.getColumn());
+        }
+        return columns;
+    }
+
     /**
      * Parses a query from the original gregrahn/join-order-benchmark list into an analyzable form.
      * This parser only supports equijoins and single-column comparisons.
@@ -102,8 +115,8 @@ public record BenchmarkQuery(Set<TableRef> relations, Set<JoinPredicate> predica
             Column column = toColumn(bet.getLeftExpression(), tablesByAlias);
             HistogramValue lower = toValue(bet.getBetweenExpressionStart());
             HistogramValue upper = toValue(bet.getBetweenExpressionEnd());
-            values.add(new ValuePredicate.Inequality(column, lower, true, true, false));
-            values.add(new ValuePredicate.Inequality(column, upper, false, true, true));
+            values.add(new ValuePredicate.Inequality(column, lower, false, true, true));
+            values.add(new ValuePredicate.Inequality(column, upper, true, true, false));
         } else if (condition instanceof LikeExpression like) {
             values.add(new ValuePredicate.Like(
                     toColumn(like.getLeftExpression(), tablesByAlias),
@@ -168,8 +181,8 @@ public record BenchmarkQuery(Set<TableRef> relations, Set<JoinPredicate> predica
     }
 
     private static HistogramValue toValue(Expression expr) {
-        if (expr instanceof StringValue str) return new HistogramValue(str.getValue());
-        if (expr instanceof LongValue num) return new HistogramValue(num.getValue());
+        if (expr instanceof StringValue str) return HistogramValue.of(str.getValue());
+        if (expr instanceof LongValue num) return HistogramValue.of(num.getValue());
         throw new IllegalArgumentException(expr.getClass().getName() + ": " + expr);
     }
 
@@ -5,8 +5,21 @@ import java.util.*;
 // Nulls excluded in other fields
 // histogram excludes mostCommon
 public record ColumnStats(double fractionNull, long nDistinct, Map<HistogramValue, Double> mostCommon, List<HistogramRange> histogram) {
+    public ColumnStats {
+        mostCommon = MostCommonValues.of(mostCommon);
+        histogram = Histogram.of(histogram);
+    }
+
+    private MostCommonValues mcv() {
+        return (MostCommonValues) mostCommon;
+    }
+
+    public Histogram buckets() {
+        return (Histogram) histogram;
+    }
+
     public double fractionUnmapped() {
-        return 1 - fractionNull - mostCommon.values().stream().mapToDouble(Double::doubleValue).sum();
+        return 1 - fractionNull - mcv().total();
     }
 
     public long nDistinctUnmapped() {
@@ -14,24 +27,51 @@ public record ColumnStats(double fractionNull, long nDistinct, Map<HistogramValu
     }
 
     public double estimatedFrequencyAssumingExists(HistogramValue value) {
-        if (mostCommon.containsKey(value)) {
-            return mostCommon.get(value);
+        int index = mcv().indexOf(value);
+        if (index >= 0) {
+            return mcv().frequency(index);
         }
         return fractionUnmapped() / nDistinctUnmapped();
     }
 
+    // Frequency of a value that isn't one of the common values: its bucket's average frequency if there's a
+    // histogram, which is 0 outside of it, or else the average over all the values that aren't common.
+    private double unmappedFrequency(HistogramValue value) {
+        Histogram buckets = buckets();
+        if (buckets.totalFraction() > 0) {
+            return buckets.fractionEqual(value) * fractionUnmapped() / buckets.totalFraction();
+        }
+        return nDistinctUnmapped() > 0 ? fractionUnmapped() / nDistinctUnmapped() : 0;
+    }
+
     public ColumnSelectivity semijoin(ColumnStats join) {
+        MostCommonValues mine = mcv(), theirs = join.mcv();
         double sharedFractionMine = 0;
         double unsharedFractionMine = 1 - fractionNull;
         long unsharedDistinctMine = nDistinct, unsharedDistinctTheirs = join.nDistinct;
+        double oneMinusDiscardedFraction = 1 - fractionNull;
 
-        // If a histogram entry from here is in the other relation, then that section is automatically kept.
-        for (Map.Entry<HistogramValue, Double> myEntry : mostCommon.entrySet()) {
-            if (join.mostCommon.containsKey(myEntry.getKey())) {
-                sharedFractionMine += myEntry.getValue();
-                unsharedFractionMine -= myEntry.getValue();
+        // Walk both lists of common values together. Any of mine that are also in the other relation are kept.
+        HistogramValue[] sharedValues = new HistogramValue[Math.min(mine.size(), theirs.size())];
+        double[] sharedFrequencies = new double[sharedValues.length];
+        int nShared = 0;
+        for (int i = 0, j = 0; i < mine.size(); ) {
+            int comparison = j == theirs.size() ? -1 : mine.value(i).compareTo(theirs.value(j));
+            if (comparison < 0) {
+                oneMinusDiscardedFraction -= mine.frequency(i);
+                i++;
+            } else if (comparison > 0) {
+                j++;
+            } else {
+                sharedFractionMine += mine.frequency(i);
+                unsharedFractionMine -= mine.frequency(i);
                 unsharedDistinctMine--;
                 unsharedDistinctTheirs--;
+                sharedValues[nShared] = mine.value(i);
+                sharedFrequencies[nShared] = mine.frequency(i);
+                nShared++;
+                i++;
+                j++;
             }
         }
 
@@ -43,25 +83,16 @@ public record ColumnStats(double fractionNull, long nDistinct, Map<HistogramValu
 
         double selectivity = sharedFractionMine + semijoinSelectivityLeftoverPart;
 
-        double oneMinusDiscardedFraction = 1 - fractionNull;
-        Map<HistogramValue, Double> newMostCommon = new HashMap<>();
-        for (Map.Entry<HistogramValue, Double> myEntry : mostCommon.entrySet()) {
-            if (join.mostCommon.containsKey(myEntry.getKey())) {
-                newMostCommon.put(myEntry.getKey(), myEntry.getValue());
-            } else {
-                oneMinusDiscardedFraction -= myEntry.getValue();
-            }
-        }
-
-        for (Map.Entry<HistogramValue, Double> entry : newMostCommon.entrySet()) {
+        for (int i = 0; i < nShared; i++) {
             // Note that this element was not discarded.
             // New elem count = old elem count
             // New frequency * new total = old frequency * old total
             // New total = old total * (1 - discarded fraction)
             // New frequency * old total * (1 - discarded fraction) = old frequency * old total
             // New frequency * (1 - discarded fraction) = old frequency
-            entry.setValue(entry.getValue() / oneMinusDiscardedFraction);
+            sharedFrequencies[i] /= oneMinusDiscardedFraction;
         }
+        MostCommonValues newMostCommon = new MostCommonValues(Arrays.copyOf(sharedValues, nShared), Arrays.copyOf(sharedFrequencies, nShared));
 
         long newNDistinct;
         if (nDistinct == mostCommon.size() && join.nDistinct == join.mostCommon.size()) {
@@ -69,73 +100,99 @@ public record ColumnStats(double fractionNull, long nDistinct, Map<HistogramValu
         } else {
             newNDistinct = Math.min(nDistinct, join.nDistinct);
         }
-        return new ColumnSelectivity(selectivity, new ColumnStats(0, newNDistinct, newMostCommon, List.of()));
+        // Values outside the other column's histogram can't have a match, unless they're among its common values.
+        Histogram newHistogram = buckets();
+        Histogram theirBuckets = join.buckets();
+        if (!theirBuckets.isEmpty()) {
+            newHistogram = newHistogram.clip(theirBuckets.get(0).lowerBound(), theirBuckets.get(theirBuckets.size() - 1).upperBound());
+        }
+        return new ColumnSelectivity(selectivity, new ColumnStats(0, newNDistinct, newMostCommon, newHistogram.scaleTo(1 - newMostCommon.total())));
     }
 
     public ColumnSelectivity join(ColumnStats other) {
+        MostCommonValues mine = mcv(), theirs = other.mcv();
         long unsharedDistinctMine = nDistinct, unsharedDistinctTheirs = other.nDistinct;
-        long nShared = 0;
-        double selectivity = 0;
-
-        // First consider values that exist in both histograms.
-        for (Map.Entry<HistogramValue, Double> myEntry : mostCommon.entrySet()) {
-            if (other.mostCommon.containsKey(myEntry.getKey())) {
-                selectivity += myEntry.getValue() * other.mostCommon.get(myEntry.getKey());
+        double sharedSelectivity = 0;
+        // Frequency of the pairs matching values that only appear in one of the two lists, assuming they exist on the
+        // other side.
+        double onlyMine = 0, onlyTheirs = 0;
+
+        // First consider values that exist in both histograms, in a single pass over both sorted lists.
+        HistogramValue[] sharedValues = new HistogramValue[Math.min(mine.size(), theirs.size())];
+        double[] sharedFrequencies = new double[sharedValues.length];
+        int nShared = 0;
+        for (int i = 0, j = 0; i < mine.size() || j < theirs.size(); ) {
+            int comparison = i == mine.size() ? 1 : j == theirs.size() ? -1 : mine.value(i).compareTo(theirs.value(j));
+            if (comparison < 0) {
+                onlyMine += mine.frequency(i) * other.unmappedFrequency(mine.value(i));
+                i++;
+            } else if (comparison > 0) {
+                onlyTheirs += theirs.frequency(j) * unmappedFrequency(theirs.value(j));
+                j++;
+            } else {
+                double product = mine.frequency(i) * theirs.frequency(j);
+                sharedSelectivity += product;
+                sharedValues[nShared] = mine.value(i);
+                sharedFrequencies[nShared] = product;
                 unsharedDistinctMine--;
                 unsharedDistinctTheirs--;
                 nShared++;
+                i++;
+                j++;
             }
         }
+        double selectivity = sharedSelectivity;
 
         // Next consider values that exist in exactly one histogram.
-        // For values in one histogram, contributes (value * other.fractionUnmapped / other.nDistinctUnmapped) * (probability that this element is in the join).
+        // For values in one histogram, contributes (value * other's frequency of it) * (probability that this element is in the join).
         // Semijoin sets probability to min((double) unsharedDistinctTheirs / unsharedDistinctMine, 1).
-        if (other.nDistinctUnmapped() > 0) {
-            for (Map.Entry<HistogramValue, Double> myEntry : mostCommon.entrySet()) {
-                if (!other.mostCommon.containsKey(myEntry.getKey())) {
-                    double probabilityThatThisExists = Math.min((double) unsharedDistinctTheirs / unsharedDistinctMine, 1);
-                    selectivity += myEntry.getValue() * other.fractionUnmapped() / other.nDistinctUnmapped() * probabilityThatThisExists;
-                }
-            }
+        // The probability is the same for every such value, so each side only needs the sum of their products.
+        if (other.nDistinctUnmapped() > 0 && mine.size() > nShared) {
+            double probabilityThatThisExists = Math.min((double) unsharedDistinctTheirs / unsharedDistinctMine, 1);
+            selectivity += onlyMine * probabilityThatThisExists;
         }
-        if (nDistinctUnmapped() > 0) {
-            for (Map.Entry<HistogramValue, Double> theirEntry : other.mostCommon.entrySet()) {
-                if (!mostCommon.containsKey(theirEntry.getKey())) {
-                    double probabilityThatThisExists = Math.min((double) unsharedDistinctMine / unsharedDistinctTheirs, 1);
-                    selectivity += theirEntry.getValue() * fractionUnmapped() / nDistinctUnmapped() * probabilityThatThisExists;
-                }
-            }
+        if (nDistinctUnmapped() > 0 && theirs.size() > nShared) {
+            double probabilityThatThisExists = Math.min((double) unsharedDistinctMine / unsharedDistinctTheirs, 1);
+            selectivity += onlyTheirs * probabilityThatThisExists;
         }
 
-        // Finally consider values that are not in either histogram.
+        // Finally consider values that are not in either histogram. With a histogram on both sides, only the ranges
+        // they share can match, each at the density of the two columns there; otherwise the values are uniform.
         long numExplicitValues = mostCommon.size() + other.mostCommon.size() - nShared;
         long numImplicitValuesSelf = nDistinct - numExplicitValues;
         long numImplicitValuesOther = other.nDistinct - numExplicitValues;
+        Histogram myBuckets = buckets(), theirBuckets = other.buckets();
+        Histogram aligned = Histogram.join(myBuckets, theirBuckets);
         if (numImplicitValuesSelf > 0 && numImplicitValuesOther > 0) {
-            selectivity += fractionUnmapped() * other.fractionUnmapped() / Math.max(numImplicitValuesSelf, numImplicitValuesOther);
+            if (myBuckets.totalFraction() > 0 && theirBuckets.totalFraction() > 0) {
+                selectivity += aligned.totalFraction() * (fractionUnmapped() / myBuckets.totalFraction()) * (other.fractionUnmapped() / theirBuckets.totalFraction());
+            } else {
+                selectivity += fractionUnmapped() * other.fractionUnmapped() / Math.max(numImplicitValuesSelf, numImplicitValuesOther);
+            }
         }
 
-        Map<HistogramValue, Double> newMostCommon = new HashMap<>();
-        for (Map.Entry<HistogramValue, Double> myEntry : mostCommon.entrySet()) {
-            if (other.mostCommon.containsKey(myEntry.getKey())) {
-                // New fraction = count / new total
-                // New total = selectivity * old total (with "old" meaning "Cartesian product")
-                // Old fraction = count / old total
-                // Old fraction = my freq * other freq
-                // Combined:
-                // New fraction = count / selectivity / count * my freq * other freq = my freq * other freq / selectivity
-                newMostCommon.put(myEntry.getKey(), myEntry.getValue() * other.mostCommon.get(myEntry.getKey()) / selectivity);
-            }
-            // If a value isn't in both histograms, it isn't guaranteed to be in the join, so skip those.
+        for (int i = 0; i < nShared; i++) {
+            // New fraction = count / new total
+            // New total = selectivity * old total (with "old" meaning "Cartesian product")
+            // Old fraction = count / old total
+            // Old fraction = my freq * other freq
+            // Combined:
+            // New fraction = count / selectivity / count * my freq * other freq = my freq * other freq / selectivity
+            sharedFrequencies[i] /= selectivity;
         }
+        // If a value isn't in both histograms, it isn't guaranteed to be in the join, so those aren't kept.
+        MostCommonValues newMostCommon = new MostCommonValues(Arrays.copyOf(sharedValues, nShared), Arrays.copyOf(sharedFrequencies, nShared));
 
         long newNDistinct = Math.min(nDistinct, other.nDistinct);
         if (nDistinctUnmapped() == 0 && other.nDistinctUnmapped() == 0) {
-            Set<HistogramValue> common = new HashSet<>(mostCommon.keySet());
-            common.retainAll(other.mostCommon.keySet());
-            newNDistinct = common.size();
+            newNDistinct = nShared;
         }
 
-        return new ColumnSelectivity(selectivity, new ColumnStats(0, newNDistinct, newMostCommon, List.of()));
+        // Everything that isn't a shared common value is spread like the matches between the two histograms.
+        Histogram newHistogram = aligned;
+        if (newHistogram.isEmpty()) {
+            newHistogram = myBuckets.isEmpty() ? theirBuckets : myBuckets;
+        }
+        return new ColumnSelectivity(selectivity, new ColumnStats(0, newNDistinct, newMostCommon, newHistogram.scaleTo(1 - newMostCommon.total())));
     }
 }
@@ -0,0 +1,40 @@
+package dev.jonathanb.cs386d;
+
+// Prices the operators of a plan. A plan's total cost is the sum of the costs of its scans and joins, so every cost
+// must be non-negative for branch and bound to stay correct.
+public interface CostModel {
+    // Counts the rows of every intermediate result, including the base relations, regardless of how it's computed.
+    CostModel C_OUT = new CostModel() {
+        @Override
+        public double scanCost(RelationStats scanned, RelationStats output) {
+            return output.numRows();
+        }
+
+        @Override
+        public double joinCost(RelationStats probe, RelationStats build, RelationStats result) {
+            return result.numRows();
+        }
+
+        @Override
+        public String toString() {
+            return "C_out";
+        }
+    };
+
+    // scanned is the relation as stored and output is what's left of it after the scan's filters and semijoins.
+    double scanCost(RelationStats scanned, RelationStats output);
+
+    // The left input of a join is the probe side of the hash join and the right input is the build side.
+    double joinCost(RelationStats probe, RelationStats build, RelationStats result);
+
+    // Picks the model named by the cost-model system property: c_out (the default) or hash_join, whose memory budget
+    // can be set in bytes with cost-model.work-mem.
+    static CostModel fromSystemProperties() {
+        String name = System.getProperty("cost-model", "c_out");
+        return switch (name) {
+            case "c_out" -> C_OUT;
+            case "hash_join" -> new HashJoinCostModel(Long.getLong("cost-model.work-mem", HashJoinCostModel.DEFAULT_WORK_MEM));
+            default -> throw new IllegalArgumentException("Unknown cost model: " + name);
+        };
+    }
+}
@@ -0,0 +1,71 @@
+package dev.jonathanb.cs386d;
+
+// Enumerates csg-cmp pairs: pairs of disjoint connected subgraphs that are joined by at least one edge.
+// Each unordered pair is emitted exactly once, and no pair is emitted before all pairs making up either half.
+// Based on Moerkotte and Neumann, "Analysis of Two Existing and One New Dynamic Programming Algorithm for the
+// Generation of Optimal Bushy Join Trees without Cross Products" (VLDB 2006).
+final class DPccp {
+    interface PairConsumer {
+        void accept(long csg, long cmp);
+    }
+
+    private final QueryGraph graph;
+    private final PairConsumer consumer;
+    private final boolean leftDeep;
+
+    private DPccp(QueryGraph graph, PairConsumer consumer, boolean leftDeep) {
+        this.graph = graph;
+        this.consumer = consumer;
+        this.leftDeep = leftDeep;
+    }
+
+    // If leftDeep is set, pairs where neither side is a single relation are skipped without being enumerated.
+    public static void enumerate(QueryGraph graph, boolean leftDeep, PairConsumer consumer) {
+        DPccp enumerator = new DPccp(graph, consumer, leftDeep);
+        for (int i = graph.size() - 1; i >= 0; i--) {
+            long start = 1L << i;
+            enumerator.emitCsg(start);
+            enumerator.enumerateCsgRec(start, upTo(i));
+        }
+    }
+
+    // The set of all relations with an id <= i.
+    private static long upTo(int i) {
+        return i == Long.SIZE - 1 ? -1L : (1L << (i + 1)) - 1;
+    }
+
+    // Subsets are visited in increasing numeric order, so smaller subsets of the neighborhood are emitted first.
+    private void enumerateCsgRec(long set, long excluded) {
+        long neighborhood = graph.neighborhood(set) & ~excluded;
+        if (neighborhood == 0) return;
+        for (long subset = neighborhood & -neighborhood; subset != 0; subset = (subset - neighborhood) & neighborhood) {
+            emitCsg(set | subset);
+        }
+        for (long subset = neighborhood & -neighborhood; subset != 0; subset = (subset - neighborhood) & neighborhood) {
+            enumerateCsgRec(set | subset, excluded | neighborhood);
+        }
+    }
+
+    private void emitCsg(long csg) {
+        long excluded = csg | upTo(Long.numberOfTrailingZeros(csg));
+        long neighborhood = graph.neighborhood(csg) & ~excluded;
+        for (long rest = neighborhood; rest != 0; rest &= ~Long.highestOneBit(rest)) {
+            long cmp = Long.highestOneBit(rest);
+            consumer.accept(csg, cmp);
+            if (!leftDeep || Long.bitCount(csg) == 1) {
+                enumerateCmpRec(csg, cmp, excluded | (neighborhood & upTo(Long.numberOfTrailingZeros(cmp))));
+            }
+        }
+    }
+
+    private void enumerateCmpRec(long csg, long cmp, long excluded) {
+        long neighborhood = graph.neighborhood(cmp) & ~excluded;
+        if (neighborhood == 0) return;
+        for (long subset = neighborhood & -neighborhood; subset != 0; subset = (subset - neighborhood) & neighborhood) {
+            consumer.accept(csg, cmp | subset);
+        }
+        for (long subset = neighborhood & -neighborhood; subset != 0; subset = (subset - neighborhood) & neighborhood) {
+            enumerateCmpRec(csg, cmp | subset, excluded | neighborhood);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package dev.jonathanb.cs386d;
+
+import java.util.*;
+
+// The columns of a query that its join predicates make equal, found once per query with a union-find.
+// A plan only makes columns equal through the predicates it has actually applied, so each plan also carries an array
+// mapping every column id to the smallest id of its class within that plan (or -1 if the column's relation isn't
+// part of it). Merging two plans and applying a predicate are then a pass over that array instead of a closure over
+// all of the plan's predicates.
+final class EquivalenceClasses {
+    private final List<Column> columns = new ArrayList<>();
+    private final Map<Column, Integer> ids = new HashMap<>();
+    private final Map<TableRef, List<Integer>> columnsOf = new HashMap<>();
+    // Root of each column's class across the whole query.
+    private final int[] roots;
+
+    EquivalenceClasses(Collection<JoinPredicate> predicates) {
+        for (JoinPredicate predicate : predicates) {
+            register(predicate.a());
+            register(predicate.b());
+        }
+        int[] parent = new int[columns.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        for (JoinPredicate predicate : predicates) {
+            int a = find(parent, ids.get(predicate.a())), b = find(parent, ids.get(predicate.b()));
+            parent[Math.max(a, b)] = Math.min(a, b);
+        }
+        roots = new int[parent.length];
+        for (int i = 0; i < parent.length; i++) {
+            roots[i] = find(parent, i);
+        }
+    }
+
+    private void register(Column column) {
+        if (ids.containsKey(column)) return;
+        ids.put(column, columns.size());
+        columnsOf.computeIfAbsent(column.table(), x -> new ArrayList<>()).add(columns.size());
+        columns.add(column);
+    }
+
+    private static int find(int[] parent, int id) {
+        while (parent[id] != id) {
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+        return id;
+    }
+
+    // Every column that the query's predicates make equal to this one, including itself.
+    public Set<Column> queryClass(Column column) {
+        Integer id = ids.get(column);
+        if (id == null) return Set.of(column);
+        Set<Column> out = new HashSet<>();
+        for (int i = 0; i < columns.size(); i++) {
+            if (roots[i] == roots[id]) out.add(columns.get(i));
+        }
+        return out;
+    }
+
+    // The given predicates, followed by an implied predicate between every other pair of equal columns from different
+    // relations, so that the optimizer can join any two relations that share a class.
+    public Set<JoinPredicate> withImpliedPredicates(Collection<JoinPredicate> predicates) {
+        Set<JoinPredicate> out = new LinkedHashSet<>(predicates);
+        Set<Set<Column>> joined = new HashSet<>();
+        for (JoinPredicate predicate : predicates) {
+            joined.add(Set.of(predicate.a(), predicate.b()));
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            for (int j = i + 1; j < columns.size(); j++) {
+                Column a = columns.get(i), b = columns.get(j);
+                if (roots[i] != roots[j] || a.table().equals(b.table()) || joined.contains(Set.of(a, b))) continue;
+                out.add(new JoinPredicate(a, b, true));
+            }
+        }
+        return out;
+    }
+
+    // Whether the plan has already made the predicate's columns equal, in which case applying it changes nothing.
+    public boolean isRedundant(int[] classes, JoinPredicate predicate) {
+        int a = classes[ids.get(predicate.a())];
+        return a >= 0 && a == classes[ids.get(predicate.b())];
+    }
+
+    // The classes of a plan consisting of just this relation: each of its columns on its own.
+    public int[] forRelation(TableRef relation) {
+        int[] classes = new int[columns.size()];
+        Arrays.fill(classes, -1);
+        for (int id : columnsOf.getOrDefault(relation, List.of())) {
+            classes[id] = id;
+        }
+        return classes;
+    }
+
+    // The classes of the cross product of two plans, which never share a column.
+    public int[] merge(int[] left, int[] right) {
+        int[] classes = new int[columns.size()];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = Math.max(left[i], right[i]);
+        }
+        return classes;
+    }
+
+    // Applies the predicate to the classes in place, and returns the columns it has made equal to each other.
+    public List<Column> join(int[] classes, JoinPredicate predicate) {
+        int a = classes[ids.get(predicate.a())], b = classes[ids.get(predicate.b())];
+        if (a < 0 || b < 0) {
+            throw new IllegalArgumentException("Predicate " + predicate + " isn't between relations of the plan");
+        }
+        int merged = Math.min(a, b);
+        List<Column> out = new ArrayList<>();
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i] == a || classes[i] == b) {
+                classes[i] = merged;
+                out.add(columns.get(i));
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,129 @@
+package dev.jonathanb.cs386d;
+
+import java.util.*;
+
+// Greedy Operator Ordering (Fegaras, "A New Heuristic for Optimizing Large Queries", DEXA 1998):
+// repeatedly performs whichever join has the smallest estimated result until a single plan is left.
+// Runs in polynomial time, so it works for queries far beyond the reach of the exhaustive enumerations.
+final class GreedyOperatorOrdering {
+    private final JoinOptimizer optimizer;
+    private final QueryGraph graph;
+    private final boolean bushy;
+
+    // Each partial plan is identified by the index of one of its relations; merged plans are null.
+    private final OperationTree[] plans;
+    private final List<List<Integer>> members = new ArrayList<>();
+    private final int[] planOf;
+    // Best join between each pair of connected plans, keyed by pairKey.
+    private final Map<Long, OperationTree> candidates = new HashMap<>();
+    // In left-deep mode, the only plan with more than one relation (or -1 before the first join).
+    private int composite = -1;
+
+    private GreedyOperatorOrdering(JoinOptimizer optimizer, QueryGraph graph, OperationTree[] baseOps, boolean bushy) {
+        this.optimizer = optimizer;
+        this.graph = graph;
+        this.bushy = bushy;
+        this.plans = baseOps.clone();
+        this.planOf = new int[graph.size()];
+        for (int i = 0; i < graph.size(); i++) {
+            members.add(new ArrayList<>(List.of(i)));
+            planOf[i] = i;
+        }
+    }
+
+    // Returns null if the query graph isn't connected.
+    public static OperationTree optimize(JoinOptimizer optimizer, QueryGraph graph, OperationTree[] baseOps, boolean bushy) {
+        if (!graph.isConnected()) return null;
+        return new GreedyOperatorOrdering(optimizer, graph, baseOps, bushy).run();
+    }
+
+    private static long pairKey(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+
+    private OperationTree run() {
+        for (int a = 0; a < graph.size(); a++) {
+            for (int b : graph.adjacent(a)) {
+                if (a < b) addCandidate(a, b);
+            }
+        }
+
+        for (int remaining = graph.size(); remaining > 1; remaining--) {
+            long bestKey = 0;
+            OperationTree best = null;
+            for (Map.Entry<Long, OperationTree> entry : candidates.entrySet()) {
+                if (best == null || isBetterStep(entry.getValue(), best)) {
+                    bestKey = entry.getKey();
+                    best = entry.getValue();
+                }
+            }
+            merge((int) (bestKey >>> 32), (int) bestKey, best);
+        }
+        return plans[planOf[0]];
+    }
+
+    // The greedy criterion is the smallest intermediate result; cost only breaks ties.
+    private static boolean isBetterStep(OperationTree a, OperationTree b) {
+        int comparison = Double.compare(a.getStats().numRows(), b.getStats().numRows());
+        if (comparison != 0) return comparison < 0;
+        return PlanTable.preferred(a, b) == a && a != b;
+    }
+
+    private void merge(int a, int b, OperationTree joined) {
+        members.get(a).addAll(members.get(b));
+        for (int relation : members.get(b)) {
+            planOf[relation] = a;
+        }
+        members.set(b, null);
+        plans[a] = joined;
+        plans[b] = null;
+
+        if (bushy) {
+            candidates.keySet().removeIf(key -> {
+                int first = (int) (key >>> 32), second = (int) (long) key;
+                return first == a || first == b || second == a || second == b;
+            });
+        } else {
+            // Once there is a composite plan, every other join has to add a single relation to it.
+            composite = a;
+            candidates.clear();
+        }
+
+        Set<Integer> neighbors = new TreeSet<>();
+        for (int relation : members.get(a)) {
+            for (int other : graph.adjacent(relation)) {
+                if (planOf[other] != a) neighbors.add(planOf[other]);
+            }
+        }
+        for (int neighbor : neighbors) {
+            addCandidate(a, neighbor);
+        }
+    }
+
+    private boolean canBuild(int left, int right) {
+        return bushy || (members.get(right).size() == 1 && (composite == -1 || left == composite));
+    }
+
+    private void addCandidate(int a, int b) {
+        OperationTree best = null;
+        for (int leftId : members.get(a)) {
+            for (int rightId : graph.adjacent(leftId)) {
+                if (planOf[rightId] != b) continue;
+                Set<JoinPredicate> predicates = graph.predicates(leftId, rightId);
+                if (canBuild(a, b)) {
+                    best = better(best, optimizer.computeJoin(plans[a], plans[b], graph.relation(leftId), graph.relation(rightId), predicates));
+                }
+                if (canBuild(b, a)) {
+                    best = better(best, optimizer.computeJoin(plans[b], plans[a], graph.relation(rightId), graph.relation(leftId), predicates));
+                }
+            }
+        }
+        if (best != null) {
+            candidates.put(pairKey(a, b), best);
+        }
+    }
+
+    private static OperationTree better(OperationTree current, OperationTree candidate) {
+        return current == null ? candidate : PlanTable.preferred(current, candidate);
+    }
+}
@@ -0,0 +1,58 @@
+package dev.jonathanb.cs386d;
+
+// Costs plans as Postgres costs a sequential scan and a hash join, in the same units and with the same defaults
+// (seq_page_cost, cpu_tuple_cost, cpu_operator_cost and work_mem). Building the hash table costs more per row than
+// probing it, so unlike C_out this prefers the smaller input on the right. A build side that doesn't fit in workMem is
+// partitioned to disk, which means writing out and reading back both inputs once.
+public record HashJoinCostModel(double seqPageCost, double cpuTupleCost, double cpuOperatorCost, long workMem) implements CostModel {
+    public static final long DEFAULT_WORK_MEM = 4L << 20;
+    private static final double PAGE_SIZE = 8192;
+    // Used for relations whose width wasn't measured.
+    private static final double DEFAULT_ROW_WIDTH = 32;
+    // Tuple header plus the hash table entry's own header and bucket pointer.
+    private static final double TUPLE_OVERHEAD = 32;
+
+    public HashJoinCostModel {
+        if (seqPageCost < 0 || cpuTupleCost < 0 || cpuOperatorCost < 0) {
+            throw new IllegalArgumentException("Costs must not be negative");
+        }
+        if (workMem <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + workMem);
+        }
+    }
+
+    public HashJoinCostModel(long workMem) {
+        this(1.0, 0.01, 0.0025, workMem);
+    }
+
+    public HashJoinCostModel() {
+        this(DEFAULT_WORK_MEM);
+    }
+
+    // Every page of the table is read, however selective its filters are, but only the rows that pass them are emitted.
+    @Override
+    public double scanCost(RelationStats scanned, RelationStats output) {
+        return pages(scanned) * seqPageCost + output.numRows() * cpuTupleCost;
+    }
+
+    @Override
+    public double joinCost(RelationStats probe, RelationStats build, RelationStats result) {
+        // Every build row is hashed and inserted, every probe row is hashed, and every result row is emitted.
+        double cost = build.numRows() * (cpuOperatorCost + cpuTupleCost)
+                + probe.numRows() * cpuOperatorCost
+                + result.numRows() * cpuTupleCost;
+        if (bytes(build) > workMem) {
+            cost += 2 * (pages(build) + pages(probe)) * seqPageCost;
+        }
+        return cost;
+    }
+
+    private static double bytes(RelationStats stats) {
+        double width = stats.rowWidth() > 0 ? stats.rowWidth() : DEFAULT_ROW_WIDTH;
+        return stats.numRows() * (width + TUPLE_OVERHEAD);
+    }
+
+    private static double pages(RelationStats stats) {
+        return Math.ceil(bytes(stats) / PAGE_SIZE);
+    }
+}
@@ -0,0 +1,180 @@
+package dev.jonathanb.cs386d;
+
+import java.util.*;
+
+// An immutable list of histogram buckets, sorted by value, that don't overlap except for sharing bounds. Alongside
+// the buckets it keeps running totals of their fractions and distinct counts, so the part of the histogram below a
+// value is a binary search for the bucket containing it plus an interpolation inside that bucket.
+public final class Histogram extends AbstractList<HistogramRange> {
+    private static final Histogram EMPTY = new Histogram(new HistogramRange[0], false, false);
+
+    private final HistogramRange[] ranges;
+    // cumulativeFraction[i] is the total fraction of the first i buckets; likewise for the distinct counts.
+    private final double[] cumulativeFraction, cumulativeDistinct;
+    // Whether the lowest and highest bounds are where the histogram was clipped, rather than values of the column.
+    private final boolean clippedBelow, clippedAbove;
+
+    private Histogram(HistogramRange[] ranges, boolean clippedBelow, boolean clippedAbove) {
+        this.ranges = ranges;
+        this.clippedBelow = clippedBelow;
+        this.clippedAbove = clippedAbove;
+        this.cumulativeFraction = new double[ranges.length + 1];
+        this.cumulativeDistinct = new double[ranges.length + 1];
+        for (int i = 0; i < ranges.length; i++) {
+            if (i > 0 && ranges[i].lowerBound().compareTo(ranges[i - 1].upperBound()) < 0) {
+                throw new IllegalArgumentException("Overlapping buckets: " + ranges[i - 1] + " and " + ranges[i]);
+            }
+            cumulativeFraction[i + 1] = cumulativeFraction[i] + ranges[i].fractionOfElements();
+            cumulativeDistinct[i + 1] = cumulativeDistinct[i] + ranges[i].numDistinct();
+        }
+    }
+
+    public static Histogram of(List<HistogramRange> ranges) {
+        if (ranges instanceof Histogram histogram) return histogram;
+        if (ranges.isEmpty()) return EMPTY;
+        HistogramRange[] sorted = ranges.toArray(new HistogramRange[0]);
+        Arrays.sort(sorted, Comparator.comparing(HistogramRange::lowerBound).thenComparing(HistogramRange::upperBound));
+        return new Histogram(sorted, false, false);
+    }
+
+    @Override
+    public HistogramRange get(int index) {
+        return ranges[index];
+    }
+
+    @Override
+    public int size() {
+        return ranges.length;
+    }
+
+    // Fraction of the whole column covered by the histogram.
+    public double totalFraction() {
+        return cumulativeFraction[ranges.length];
+    }
+
+    public double totalDistinct() {
+        return cumulativeDistinct[ranges.length];
+    }
+
+    // The bounds that are values of the column, in order: every bucket's lower bound and the last one's upper bound,
+    // except for the ends that a clip put in place.
+    public List<HistogramValue> sampledBounds() {
+        List<HistogramValue> bounds = new ArrayList<>(ranges.length + 1);
+        for (int i = clippedBelow ? 1 : 0; i < ranges.length; i++) {
+            bounds.add(ranges[i].lowerBound());
+        }
+        if (ranges.length > 0 && !clippedAbove) {
+            bounds.add(ranges[ranges.length - 1].upperBound());
+        }
+        return bounds;
+    }
+
+    // Fraction of the whole column in the histogram that is less than the value.
+    public double fractionBelow(HistogramValue value) {
+        return below(cumulativeFraction, value);
+    }
+
+    public double distinctBelow(HistogramValue value) {
+        return below(cumulativeDistinct, value);
+    }
+
+    public double fractionBetween(HistogramValue lower, HistogramValue upper) {
+        return Math.max(fractionBelow(upper) - fractionBelow(lower), 0);
+    }
+
+    // Fraction of the whole column equal to the value, assuming its bucket's values are all equally common.
+    public double fractionEqual(HistogramValue value) {
+        int index = bucketOf(value);
+        if (index == ranges.length || value.compareTo(ranges[index].lowerBound()) < 0) return 0;
+        return ranges[index].fractionOfElements() / Math.max(ranges[index].numDistinct(), 1);
+    }
+
+    // Index of the first bucket whose upper bound is at least the value, or the number of buckets if there isn't one.
+    private int bucketOf(HistogramValue value) {
+        int low = 0, high = ranges.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ranges[mid].upperBound().compareTo(value) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private double below(double[] cumulative, HistogramValue value) {
+        int index = bucketOf(value);
+        if (index == ranges.length) return cumulative[index];
+        HistogramRange range = ranges[index];
+        if (value.compareTo(range.lowerBound()) <= 0) return cumulative[index];
+        double position = Math.min(Math.max(value.fractionBetween(range.lowerBound(), range.upperBound()), 0), 1);
+        if (Double.isNaN(position)) position = 0.5;
+        return cumulative[index] + (cumulative[index + 1] - cumulative[index]) * position;
+    }
+
+    // The part of the histogram between the bounds, either of which may be null for no bound. Buckets that straddle
+    // a bound keep the part of their fraction and distinct count that falls inside it.
+    public Histogram clip(HistogramValue lower, HistogramValue upper) {
+        List<HistogramRange> clipped = new ArrayList<>();
+        boolean cutBelow = false, cutAbove = false;
+        for (int i = lower == null ? 0 : bucketOf(lower); i < ranges.length; i++) {
+            HistogramRange range = ranges[i];
+            if (upper != null && range.lowerBound().compareTo(upper) > 0) break;
+            HistogramValue from = lower == null || lower.compareTo(range.lowerBound()) < 0 ? range.lowerBound() : lower;
+            HistogramValue to = upper == null || upper.compareTo(range.upperBound()) > 0 ? range.upperBound() : upper;
+            // A bound that only touches a bucket leaves nothing of it.
+            if (from.equals(to) && !range.lowerBound().equals(range.upperBound())) continue;
+            if (clipped.isEmpty()) cutBelow = from == range.lowerBound() ? i == 0 && clippedBelow : !from.equals(range.lowerBound());
+            cutAbove = to == range.upperBound() ? i == ranges.length - 1 && clippedAbove : !to.equals(range.upperBound());
+            clipped.add(from == range.lowerBound() && to == range.upperBound() ? range : range.subRange(from, to));
+        }
+        return clipped.isEmpty() ? EMPTY : new Histogram(clipped.toArray(new HistogramRange[0]), cutBelow, cutAbove);
+    }
+
+    // The same buckets, with their fractions rescaled to add up to the given total.
+    public Histogram scaleTo(double total) {
+        double current = totalFraction();
+        if (current <= 0 || !(total > 0)) return EMPTY;
+        if (current == total) return this;
+        HistogramRange[] scaled = new HistogramRange[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            HistogramRange range = ranges[i];
+            scaled[i] = new HistogramRange(range.lowerBound(), range.upperBound(), range.numDistinct(), range.fractionOfElements() * total / current);
+        }
+        return new Histogram(scaled, clippedBelow, clippedAbove);
+    }
+
+    // Lines up the buckets of two columns, splitting them wherever either has a bound, and estimates how the pairs of
+    // rows where the two are equal are spread over the result. Within a piece both columns are assumed to be uniform,
+    // with every value of the side with fewer distinct values also appearing on the other side. Each piece's fraction
+    // is relative to the cross product, so the total is the selectivity of the equijoin over these values.
+    public static Histogram join(Histogram a, Histogram b) {
+        List<HistogramRange> pieces = new ArrayList<>();
+        for (int i = 0, j = 0; i < a.ranges.length && j < b.ranges.length; ) {
+            HistogramRange left = a.ranges[i], right = b.ranges[j];
+            if (left.overlaps(right)) {
+                HistogramValue from = max(left.lowerBound(), right.lowerBound()), to = min(left.upperBound(), right.upperBound());
+                HistogramRange leftPiece = left.subRange(from, to), rightPiece = right.subRange(from, to);
+                double distinct = Math.max(leftPiece.numDistinct(), rightPiece.numDistinct());
+                if (distinct > 0) {
+                    pieces.add(new HistogramRange(from, to, Math.min(leftPiece.numDistinct(), rightPiece.numDistinct()),
+                            leftPiece.fractionOfElements() * rightPiece.fractionOfElements() / distinct));
+                }
+            }
+            // Move past whichever bucket ends first; buckets sharing a bound still overlap the next one on the other side.
+            int comparison = left.upperBound().compareTo(right.upperBound());
+            if (comparison <= 0) i++;
+            if (comparison >= 0) j++;
+        }
+        return pieces.isEmpty() ? EMPTY : new Histogram(pieces.toArray(new HistogramRange[0]), false, false);
+    }
+
+    private static HistogramValue max(HistogramValue a, HistogramValue b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static HistogramValue min(HistogramValue a, HistogramValue b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+}
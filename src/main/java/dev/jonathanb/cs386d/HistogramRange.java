@@ -1,6 +1,5 @@
 package dev.jonathanb.cs386d;
 
-import java.math.MathContext;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,7 +25,7 @@ public record HistogramRange(HistogramValue lowerBound, HistogramValue upperBoun
         if (this.lowerBound.equals(this.upperBound)) {
             return this;
         }
-        double portionOfRange = (upper.numeric().subtract(lower.numeric())).divide(upperBound.numeric().subtract(lowerBound.numeric()), MathContext.DECIMAL64).doubleValue();
+        double portionOfRange = upper.fractionBetween(lowerBound, upperBound) - lower.fractionBetween(lowerBound, upperBound);
         return new HistogramRange(lower, upper, numDistinct * portionOfRange, fractionOfElements * portionOfRange);
     }
 
@@ -35,7 +34,7 @@ public record HistogramRange(HistogramValue lowerBound, HistogramValue upperBoun
         for (int i = 0; i < values.size() - 1; i++) {
             HistogramValue lower = values.get(i);
             HistogramValue upper = values.get(i + 1);
-            out.add(new HistogramRange(lower, upper, totalNumDistinct / (values.size()) - 1, totalFractionOfElements / (values.size() - 1)));
+            out.add(new HistogramRange(lower, upper, totalNumDistinct / (values.size() - 1), totalFractionOfElements / (values.size() - 1)));
         }
         return out;
     }
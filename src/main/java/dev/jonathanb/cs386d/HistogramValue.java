@@ -1,42 +1,173 @@
 package dev.jonathanb.cs386d;
 
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.math.RoundingMode;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Values are compared through primitive sort keys: whole numbers by their long value, strings by their first four
+// characters packed into a long (falling back to the full string on a tie), and only other numbers by BigDecimal.
+// Numbers are equal if they have the same value, whatever their type, so 5 == 5L == 5.0.
+public final class HistogramValue implements Comparable<HistogramValue> {
+    private static final byte INTEGRAL = 0, DECIMAL = 1, STRING = 2;
+    private static final int PREFIX_LENGTH = 4;
+
+    private static final Map<Object, WeakReference<HistogramValue>> POOL = new WeakHashMap<>();
+
+    private final Object obj;
+    private final byte kind;
+    // The value itself for INTEGRAL, the packed prefix for STRING.
+    private final long key;
+    // Only set for DECIMAL.
+    private final BigDecimal decimal;
 
-public record HistogramValue(Object obj, BigDecimal numeric) implements Comparable<HistogramValue> {
     public HistogramValue(Object obj) {
-        this(obj, typeToNumber(obj));
+        this.obj = obj;
+        if (obj instanceof String s) {
+            kind = STRING;
+            key = packPrefix(s);
+            decimal = null;
+        } else if (obj instanceof Long || obj instanceof Integer || obj instanceof Short || obj instanceof Byte) {
+            kind = INTEGRAL;
+            key = ((Number) obj).longValue();
+            decimal = null;
+        } else if (obj instanceof Number n) {
+            BigDecimal value = toBigDecimal(n).stripTrailingZeros();
+            Long whole = wholeValue(value);
+            if (whole != null) {
+                // Whole numbers that fit in a long get the fast path no matter what type they came in as.
+                kind = INTEGRAL;
+                key = whole;
+                decimal = null;
+            } else {
+                kind = DECIMAL;
+                key = 0;
+                decimal = value;
+            }
+        } else {
+            throw new UnsupportedOperationException("Cannot convert " + obj.getClass() + " to a numeric equivalent");
+        }
+    }
+
+    // Returns a shared instance for the value, so that identical keys loaded into many columns are only stored once.
+    public static HistogramValue of(Object obj) {
+        synchronized (POOL) {
+            WeakReference<HistogramValue> ref = POOL.get(obj);
+            HistogramValue value = ref == null ? null : ref.get();
+            if (value == null) {
+                value = new HistogramValue(obj);
+                POOL.put(obj, new WeakReference<>(value));
+            }
+            return value;
+        }
+    }
+
+    public Object obj() {
+        return obj;
+    }
+
+    private static BigDecimal toBigDecimal(Number n) {
+        if (n instanceof BigDecimal d) return d;
+        if (n instanceof BigInteger i) return new BigDecimal(i);
+        return BigDecimal.valueOf(n.doubleValue());
+    }
+
+    private static Long wholeValue(BigDecimal value) {
+        try {
+            return value.longValueExact();
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+    private BigDecimal numeric() {
+        return kind == INTEGRAL ? BigDecimal.valueOf(key) : decimal;
+    }
+
+    // Packs the first few characters so that comparing the results as unsigned longs orders the strings the same way
+    // as String.compareTo does, except for ties.
+    private static long packPrefix(String s) {
+        long packed = 0;
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            packed = (packed << Character.SIZE) | (i < s.length() ? s.charAt(i) : 0);
+        }
+        return packed;
     }
 
     @Override
     public int compareTo(HistogramValue o) {
-        return numeric.compareTo(o.numeric);
+        if (kind == STRING || o.kind == STRING) {
+            // Numbers sort before strings; a column never mixes the two.
+            if (kind != o.kind) return kind == STRING ? 1 : -1;
+            int comparison = Long.compareUnsigned(key, o.key);
+            if (comparison != 0) return comparison;
+            return ((String) obj).compareTo((String) o.obj);
+        }
+        if (kind == INTEGRAL && o.kind == INTEGRAL) {
+            return Long.compare(key, o.key);
+        }
+        return numeric().compareTo(o.numeric());
     }
 
-    private static BigDecimal typeToNumber(Object o) {
-        if (o instanceof Number) {
-            if (o instanceof BigDecimal) {
-                return (BigDecimal) o;
-            }
-            if (o instanceof BigInteger) {
-                return new BigDecimal((BigInteger) o);
+    // Where this value falls between the two bounds, from 0 at lower to 1 at upper, for interpolating within a bucket.
+    public double fractionBetween(HistogramValue lower, HistogramValue upper) {
+        double position, lowerPosition, upperPosition;
+        if (kind == STRING && lower.kind == STRING && upper.kind == STRING) {
+            // Everything between the bounds shares their common prefix, so only the characters after it matter.
+            String lowerString = (String) lower.obj, upperString = (String) upper.obj;
+            int common = 0;
+            while (common < lowerString.length() && common < upperString.length() && lowerString.charAt(common) == upperString.charAt(common)) {
+                common++;
             }
-            if (o instanceof Long) {
-                return new BigDecimal((Long) o);
-            }
-            return BigDecimal.valueOf(((Number) o).doubleValue());
-        }
-        if (o instanceof String) {
-            BigDecimal value = BigDecimal.ZERO;
-            BigDecimal frac = BigDecimal.ONE;
-            for (char c : ((String) o).toCharArray()) {
-                frac = frac.movePointLeft(5);
-                value = value.add(frac.multiply(BigDecimal.valueOf(c).add(BigDecimal.ONE)));
-            }
-            return value;
+            position = stringPosition((String) obj, common);
+            lowerPosition = stringPosition(lowerString, common);
+            upperPosition = stringPosition(upperString, common);
+        } else {
+            position = numericPosition();
+            lowerPosition = lower.numericPosition();
+            upperPosition = upper.numericPosition();
         }
-        throw new UnsupportedOperationException("Cannot convert " + o.getClass() + " to a numeric equivalent");
+        return (position - lowerPosition) / (upperPosition - lowerPosition);
+    }
+
+    private double numericPosition() {
+        return switch (kind) {
+            case INTEGRAL -> key;
+            case DECIMAL -> decimal.doubleValue();
+            default -> stringPosition((String) obj, 0);
+        };
+    }
+
+    // Treats the string as a fraction with one base-100000 digit per character, as far as a double can resolve.
+    private static double stringPosition(String s, int start) {
+        double value = 0;
+        double scale = 1;
+        for (int i = start; i < s.length() && i < start + PREFIX_LENGTH; i++) {
+            scale *= 1e-5;
+            value += scale * (s.charAt(i) + 1);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HistogramValue other) || kind != other.kind || key != other.key) return false;
+        return switch (kind) {
+            case STRING -> obj.equals(other.obj);
+            case DECIMAL -> decimal.equals(other.decimal);
+            default -> true;
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        return switch (kind) {
+            case STRING -> obj.hashCode();
+            case DECIMAL -> decimal.hashCode();
+            default -> Long.hashCode(key);
+        };
     }
 
     @Override
@@ -0,0 +1,154 @@
+package dev.jonathanb.cs386d;
+
+import java.util.*;
+
+// The IKKBZ algorithm (Ibaraki and Kameda 1984; Krishnamurthy, Boral and Zaniolo 1986) finds the best left-deep
+// order for an acyclic query graph under an ASI cost function in polynomial time. Here the cost function is C_out with
+// each edge's selectivity taken from computeJoin on the two base relations, and the chosen order is then costed for
+// real by computeJoin. A cyclic graph is first cut down to its minimum-selectivity spanning tree, which keeps the most
+// selective edges; each relation is then joined through its edge in that tree, as the exhaustive enumerations also
+// only apply the predicates of one edge per join.
+final class IKKBZ {
+    // A run of relations that has to stay together in the final order.
+    private record Chain(List<Integer> relations, double size, double cost) {
+        Chain append(Chain next) {
+            List<Integer> combined = new ArrayList<>(relations);
+            combined.addAll(next.relations);
+            return new Chain(combined, size * next.size, cost + size * next.cost);
+        }
+
+        double rank() {
+            return (size - 1) / cost;
+        }
+    }
+
+    private final JoinOptimizer optimizer;
+    private final QueryGraph graph;
+    private final OperationTree[] baseOps;
+    private final double[] selectivities;
+    // Adjacency lists of the spanning tree that the orders are built over.
+    private final List<List<Integer>> tree = new ArrayList<>();
+
+    private IKKBZ(JoinOptimizer optimizer, QueryGraph graph, OperationTree[] baseOps) {
+        this.optimizer = optimizer;
+        this.graph = graph;
+        this.baseOps = baseOps;
+        int size = graph.size();
+        this.selectivities = new double[size * size];
+        for (int a = 0; a < size; a++) {
+            for (int b : graph.adjacent(a)) {
+                if (a > b) continue;
+                OperationTree join = optimizer.computeJoin(baseOps[a], baseOps[b], graph.relation(a), graph.relation(b), graph.predicates(a, b));
+                double selectivity = join.getStats().numRows() / (baseOps[a].getStats().numRows() * baseOps[b].getStats().numRows());
+                if (Double.isNaN(selectivity)) selectivity = 0;
+                selectivities[a * size + b] = selectivity;
+                selectivities[b * size + a] = selectivity;
+            }
+        }
+        buildSpanningTree();
+    }
+
+    // Prim's algorithm over the edge selectivities, starting from relation 0. Ties go to the lower ids, so the tree
+    // only depends on the stats.
+    private void buildSpanningTree() {
+        int size = graph.size();
+        for (int i = 0; i < size; i++) {
+            tree.add(new ArrayList<>());
+        }
+        boolean[] inTree = new boolean[size];
+        double[] best = new double[size];
+        int[] via = new int[size];
+        Arrays.fill(best, Double.POSITIVE_INFINITY);
+        Arrays.fill(via, -1);
+        int next = 0;
+        for (int added = 0; added < size; added++) {
+            inTree[next] = true;
+            if (via[next] >= 0) {
+                tree.get(next).add(via[next]);
+                tree.get(via[next]).add(next);
+            }
+            for (int neighbor : graph.adjacent(next)) {
+                if (!inTree[neighbor] && selectivities[next * size + neighbor] < best[neighbor]) {
+                    best[neighbor] = selectivities[next * size + neighbor];
+                    via[neighbor] = next;
+                }
+            }
+            next = -1;
+            for (int i = 0; i < size; i++) {
+                if (!inTree[i] && via[i] >= 0 && (next < 0 || best[i] < best[next])) next = i;
+            }
+            if (next < 0) break;
+        }
+    }
+
+    // Returns null if the query graph isn't connected.
+    public static OperationTree optimize(JoinOptimizer optimizer, QueryGraph graph, OperationTree[] baseOps) {
+        if (!graph.isConnected()) return null;
+        return new IKKBZ(optimizer, graph, baseOps).run();
+    }
+
+    private OperationTree run() {
+        List<Integer> bestOrder = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+        int[] bestParents = null;
+        for (int root = 0; root < graph.size(); root++) {
+            int[] parents = new int[graph.size()];
+            parents[root] = -1;
+            List<Chain> chains = orderSubtree(root, parents);
+            List<Integer> order = new ArrayList<>(List.of(root));
+            double size = baseOps[root].getStats().numRows();
+            double cost = 0;
+            for (Chain chain : chains) {
+                order.addAll(chain.relations());
+                cost += size * chain.cost();
+                size *= chain.size();
+            }
+            if (bestOrder == null || cost < bestCost) {
+                bestOrder = order;
+                bestCost = cost;
+                bestParents = parents;
+            }
+        }
+
+        OperationTree plan = baseOps[bestOrder.get(0)];
+        for (int i = 1; i < bestOrder.size(); i++) {
+            int next = bestOrder.get(i), parent = bestParents[next];
+            plan = optimizer.computeJoin(plan, baseOps[next], graph.relation(parent), graph.relation(next), graph.predicates(parent, next));
+        }
+        return plan;
+    }
+
+    // Returns the order of the node's descendants as a sequence of chains with ascending ranks.
+    private List<Chain> orderSubtree(int node, int[] parents) {
+        List<Chain> merged = new ArrayList<>();
+        for (int child : tree.get(node)) {
+            if (child == parents[node]) continue;
+            parents[child] = node;
+
+            double size = selectivities[node * graph.size() + child] * baseOps[child].getStats().numRows();
+            List<Chain> childChains = new ArrayList<>();
+            childChains.add(new Chain(List.of(child), size, size));
+            childChains.addAll(orderSubtree(child, parents));
+
+            // The child has to come before its descendants, so it absorbs any that would otherwise be ordered first.
+            while (childChains.size() > 1 && childChains.get(0).rank() > childChains.get(1).rank()) {
+                childChains.set(0, childChains.get(0).append(childChains.remove(1)));
+            }
+            merged = mergeByRank(merged, childChains);
+        }
+        return merged;
+    }
+
+    private static List<Chain> mergeByRank(List<Chain> a, List<Chain> b) {
+        List<Chain> out = new ArrayList<>(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() || j < b.size()) {
+            if (j == b.size() || (i < a.size() && a.get(i).rank() <= b.get(j).rank())) {
+                out.add(a.get(i++));
+            } else {
+                out.add(b.get(j++));
+            }
+        }
+        return out;
+    }
+}
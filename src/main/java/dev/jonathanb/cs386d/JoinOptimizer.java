@@ -1,70 +1,500 @@
 package dev.jonathanb.cs386d;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class JoinOptimizer {
+    public enum Enumeration {
+        // Builds plans level by level, extending every plan of the previous size by one relation.
+        DP_SIZE,
+        // Only visits pairs of connected subgraphs that are connected to each other (see DPccp).
+        DP_CCP,
+        // Greedy Operator Ordering: always performs the join with the smallest result next. Not exact.
+        GOO,
+        // Best left-deep order for acyclic query graphs under C_out with independent edge selectivities. Cyclic graphs
+        // are ordered over their minimum-selectivity spanning tree, so the order is no longer guaranteed to be the best.
+        IKKBZ,
+        // DP_CCP up to the exhaustive threshold, then IKKBZ for query graphs that are acyclic once the cycles between
+        // equal columns are left out, and GOO for everything else.
+        ADAPTIVE
+    }
+
+    private final Enumeration enumeration;
+    private int parallelism = 1;
+    // Shared by the runs of this optimizer, so that each query doesn't start its own threads. The workers are daemon
+    // threads that exit once they've been idle for a while. Null until a parallel run needs it.
+    private ForkJoinPool pool;
+    private boolean bushy = false;
+    private int exhaustiveThreshold = 18;
+    private boolean branchAndBound = false;
+    private CostModel costModel = CostModel.C_OUT;
+
+    // Cost of the cheapest complete plan found so far in the current run, when using branch and bound.
+    private DoubleAccumulator upperBound = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+    private OptimizerMetrics metrics = new OptimizerMetrics();
+    private boolean incremental = false;
+    // State of the last run that reoptimize can continue from, or null if there is none.
+    private RetainedRun retained;
+    // For each column used by a join predicate, the relations it's joined with. A plan only keeps a column's stats
+    // while some of those relations are still outside it. Null until a query is being optimized.
+    private Map<Column, Set<TableRef>> joinPartners;
+    private EquivalenceClasses equivalenceClasses;
+
+    public JoinOptimizer() {
+        this(Enumeration.DP_SIZE);
+    }
+
+    public JoinOptimizer(Enumeration enumeration) {
+        this.enumeration = enumeration;
+    }
+
+    // Number of threads used to evaluate each level of DP_SIZE. The plan chosen doesn't depend on this.
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        if (pool != null && parallelism != this.parallelism) {
+            pool.shutdown();
+            pool = null;
+        }
+        this.parallelism = parallelism;
+    }
+
+    // Allows joins where both inputs are composite plans; otherwise the right (build) side is always a base relation.
+    // TTJBenchmarkWriter can't write bushy plans.
+    public void setBushy(boolean bushy) {
+        this.bushy = bushy;
+    }
+
+    // Largest number of relations that ADAPTIVE still optimizes exhaustively.
+    public void setExhaustiveThreshold(int exhaustiveThreshold) {
+        this.exhaustiveThreshold = exhaustiveThreshold;
+    }
+
+    // Seeds the exhaustive enumerations with a greedy plan and discards subplans that cost more than the best complete
+    // plan found so far. Semijoins pushed into a subplan later on can make it cheaper than it was when it was pruned, so
+    // this isn't guaranteed to find the same plan, but it never returns anything worse than the greedy plan.
+    public void setBranchAndBound(boolean branchAndBound) {
+        this.branchAndBound = branchAndBound;
+    }
+
+    // How plans are costed. IKKBZ still orders the joins by their C_out rank, but its plan is costed by this model.
+    public void setCostModel(CostModel costModel) {
+        this.costModel = Objects.requireNonNull(costModel);
+        retained = null;
+    }
+
+    // Keeps the memo of DP_CCP runs without branch and bound, so that reoptimize can update the plan when the stats of
+    // some relations change instead of starting over.
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        if (!incremental) retained = null;
+    }
+
+    // Metrics of the last call to optimize.
+    public OptimizerMetrics getMetrics() {
+        return metrics;
+    }
+
     public OperationTree optimize(Map<TableRef, RelationStats> baseRelations, Set<JoinPredicate> predicates, Set<ValuePredicate> valuePredicates) {
-        applyPredicates(baseRelations, valuePredicates);
+        return optimize(baseRelations, predicates, valuePredicates, new OptimizerMetrics());
+    }
 
-        Map<Set<TableRef>, OperationTree> baseOps = new HashMap<>();
-        for (Map.Entry<TableRef, RelationStats> baseRelation : baseRelations.entrySet()) {
-            OperationTree tree = new OperationTree.TableScan(baseRelation.getValue(), baseRelation.getKey(), valuePredicates.stream().filter(x -> x.getColumn().table().equals(baseRelation.getKey())).collect(Collectors.toSet()));
-            baseOps.put(tree.getTablesSet(), tree);
+    // Records into the given metrics, which may already hold phases the caller timed, such as fetching the stats.
+    @SuppressWarnings("try")
+    public OperationTree optimize(Map<TableRef, RelationStats> baseRelations, Set<JoinPredicate> predicates, Set<ValuePredicate> valuePredicates, OptimizerMetrics metrics) {
+        this.metrics = metrics;
+        metrics.start();
+        QueryGraph graph;
+        Enumeration chosen;
+        OperationTree[] baseOps;
+        try (OptimizerMetrics.Timer ignored = metrics.time(OptimizerMetrics.Phase.PREDICATES)) {
+            Map<TableRef, RelationStats> scanned = applyPredicates(baseRelations, valuePredicates);
+            equivalenceClasses = new EquivalenceClasses(predicates);
+            Set<JoinPredicate> closed = equivalenceClasses.withImpliedPredicates(predicates);
+            joinPartners = findJoinPartners(closed);
+
+            graph = new QueryGraph(baseRelations.keySet(), closed);
+            chosen = chooseEnumeration(graph, predicates);
+            baseOps = new OperationTree[graph.size()];
+            for (int i = 0; i < graph.size(); i++) {
+                TableRef relation = graph.relation(i);
+                baseOps[i] = makeTableScan(relation, scanned.get(relation), baseRelations.get(relation), valuePredicates);
+            }
         }
-        Map<Set<TableRef>, OperationTree> prevOps = new HashMap<>(baseOps);
-        Map<Set<TableRef>, OperationTree> allOps = new HashMap<>(baseOps);
 
-        Map<Set<TableRef>, Set<JoinPredicate>> predicatesByEdge = new HashMap<>();
-        Map<TableRef, Set<JoinPredicate>> predicatesByVertex = new HashMap<>(); // TODO currently unused
-        for (JoinPredicate predicate : predicates) {
-            predicatesByEdge.computeIfAbsent(Set.of(predicate.a().table(), predicate.b().table()), x -> new HashSet<>())
-                    .add(predicate);
-            predicatesByVertex.computeIfAbsent(predicate.a().table(), x -> new HashSet<>()).add(predicate);
-            predicatesByVertex.computeIfAbsent(predicate.b().table(), x -> new HashSet<>()).add(predicate);
-        }
-
-        for (int count = 2; count <= baseRelations.size(); count++) {
-            Map<Set<TableRef>, OperationTree> nextOps = new HashMap<>();
-
-            for (OperationTree left : prevOps.values()) {
-                for (TableRef rightTable : baseRelations.keySet()) {
-                    if (left.getTablesSet().contains(rightTable)) continue;
-                    OperationTree right = baseOps.get(Set.of(rightTable));
-
-                    for (TableRef leftTable : left.getTablesSet()) {
-                        Set<JoinPredicate> relevantPredicates = predicatesByEdge.get(Set.of(leftTable, rightTable));
-                        if (relevantPredicates == null) {
-                            continue;
-                        }
-
-                        OperationTree newTree = computeJoin(left, right, leftTable, rightTable, relevantPredicates);
-                        nextOps.merge(newTree.getTablesSet(), newTree, (a, b) -> {
-                            if (a.getTotalCost() <= b.getTotalCost()) return a;
-                            else return b;
-                        });
-                        allOps.merge(newTree.getTablesSet(), newTree, (a, b) -> {
-                            if (a.getTotalCost() <= b.getTotalCost()) return a;
-                            else return b;
-                        });
+        OperationTree result;
+        retained = null;
+        try (OptimizerMetrics.Timer ignored = metrics.time(OptimizerMetrics.Phase.ENUMERATION)) {
+            upperBound = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+            metrics.setLevelSize(1, graph.size());
+            OperationTree seed = null;
+            if (branchAndBound && (chosen == Enumeration.DP_SIZE || chosen == Enumeration.DP_CCP)) {
+                seed = GreedyOperatorOrdering.optimize(this, graph, baseOps, bushy);
+                if (seed != null) upperBound.accumulate(seed.getTotalCost());
+            }
+
+            result = switch (chosen) {
+                case DP_SIZE -> optimizeBySize(graph, baseOps);
+                case DP_CCP -> {
+                    PlanTable memo = baseMemo(graph, baseOps);
+                    OperationTree plan = optimizeByCsgCmp(graph, baseOps, memo, graph.allMask());
+                    // Branch and bound leaves out plans that could be needed once the costs change.
+                    if (incremental && !branchAndBound) {
+                        retained = new RetainedRun(graph, baseOps, memo, valuePredicates, equivalenceClasses, joinPartners);
                     }
+                    yield plan;
+                }
+                case GOO -> GreedyOperatorOrdering.optimize(this, graph, baseOps, bushy);
+                case IKKBZ -> IKKBZ.optimize(this, graph, baseOps);
+                case ADAPTIVE -> throw new AssertionError();
+            };
+            if (seed != null) {
+                result = result == null ? seed : PlanTable.preferred(result, seed);
+            }
+        }
+        metrics.finish(chosen, graph.size(), result);
+        return result;
+    }
+
+    private record RetainedRun(QueryGraph graph, OperationTree[] baseOps, PlanTable memo, Set<ValuePredicate> valuePredicates,
+                               EquivalenceClasses equivalenceClasses, Map<Column, Set<TableRef>> joinPartners) {
+    }
+
+    // Updates the plan of the last query after the stats of some of its relations changed. The new stats are given as
+    // fetched, before the value predicates. Only the plans for sets of relations that include a changed one are
+    // computed again; all others are taken from the memo of the last run, which needs setIncremental(true).
+    @SuppressWarnings("try")
+    public OperationTree reoptimize(Map<TableRef, RelationStats> changedRelations) {
+        RetainedRun run = retained;
+        if (run == null) {
+            throw new IllegalStateException("No retained run to update; reoptimize needs an incremental DP_CCP run without branch and bound");
+        }
+        metrics = new OptimizerMetrics();
+        metrics.start();
+        equivalenceClasses = run.equivalenceClasses();
+        joinPartners = run.joinPartners();
+        QueryGraph graph = run.graph();
+
+        OperationTree[] baseOps = run.baseOps().clone();
+        long changed = 0;
+        try (OptimizerMetrics.Timer ignored = metrics.time(OptimizerMetrics.Phase.PREDICATES)) {
+            for (Map.Entry<TableRef, RelationStats> entry : changedRelations.entrySet()) {
+                TableRef relation = entry.getKey();
+                RelationStats stats = entry.getValue();
+                for (ValuePredicate predicate : run.valuePredicates()) {
+                    if (predicate.getColumn().table().equals(relation)) stats = predicate.apply(stats);
+                }
+                int id = graph.id(relation);
+                baseOps[id] = makeTableScan(relation, entry.getValue(), stats, run.valuePredicates());
+                changed |= 1L << id;
+            }
+        }
+
+        long dirty = changed;
+        PlanTable memo = new PlanTable(run.memo().size());
+        run.memo().forEach((mask, tree) -> {
+            if ((mask & dirty) == 0) memo.put(mask, tree);
+        });
+        for (long ids = dirty; ids != 0; ids &= ids - 1) {
+            int id = Long.numberOfTrailingZeros(ids);
+            memo.put(1L << id, baseOps[id]);
+        }
+
+        OperationTree result;
+        try (OptimizerMetrics.Timer ignored = metrics.time(OptimizerMetrics.Phase.ENUMERATION)) {
+            result = optimizeByCsgCmp(graph, baseOps, memo, dirty);
+        }
+        retained = new RetainedRun(graph, baseOps, memo, run.valuePredicates(), run.equivalenceClasses(), run.joinPartners());
+        metrics.finish(Enumeration.DP_CCP, graph.size(), result);
+        return result;
+    }
+
+    private Enumeration chooseEnumeration(QueryGraph graph, Set<JoinPredicate> predicates) {
+        if (enumeration != Enumeration.ADAPTIVE) return enumeration;
+        if (graph.size() <= exhaustiveThreshold && graph.supportsBitmasks()) return Enumeration.DP_CCP;
+        return isAcyclicUpToEquivalences(graph, predicates) ? Enumeration.IKKBZ : Enumeration.GOO;
+    }
+
+    // Whether the query graph is a tree once each class of equal columns only links its relations in a tree of its own.
+    // Cycles such as a.id = b.id, a.id = c.id and b.id = c.id don't say anything that any two of their edges don't,
+    // so IKKBZ loses nothing by cutting them.
+    private boolean isAcyclicUpToEquivalences(QueryGraph graph, Set<JoinPredicate> predicates) {
+        if (!graph.isConnected()) return false;
+        Map<Set<Column>, Set<Integer>> classes = new LinkedHashMap<>();
+        for (JoinPredicate predicate : predicates) {
+            Set<Integer> relations = classes.computeIfAbsent(equivalenceClasses.queryClass(predicate.a()), x -> new TreeSet<>());
+            relations.add(graph.id(predicate.a().table()));
+            relations.add(graph.id(predicate.b().table()));
+        }
+
+        int[] parent = new int[graph.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        Set<Long> linked = new HashSet<>();
+        for (Set<Integer> relations : classes.values()) {
+            int first = relations.iterator().next();
+            for (int relation : relations) {
+                // Several classes between the same two relations, as with a composite key, are still one edge.
+                if (relation == first || !linked.add(((long) first << 32) | relation)) continue;
+                int a = find(parent, first), b = find(parent, relation);
+                if (a == b) return false;
+                parent[b] = a;
+            }
+        }
+        return true;
+    }
+
+    private static int find(int[] parent, int id) {
+        while (parent[id] != id) {
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+        return id;
+    }
+
+    @SuppressWarnings("try")
+    private OperationTree optimizeBySize(QueryGraph graph, OperationTree[] baseOps) {
+        // levels.get(k) holds the best plan for each connected set of k relations.
+        List<PlanTable> levels = new ArrayList<>();
+        levels.add(null);
+        PlanTable baseLevel = new PlanTable(graph.size());
+        for (int i = 0; i < graph.size(); i++) {
+            baseLevel.put(1L << i, baseOps[i]);
+        }
+        levels.add(baseLevel);
+
+        if (parallelism > 1 && pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        for (int count = 2; count <= graph.size(); count++) {
+            // Left-deep plans only extend the previous level. Bushy plans split the level every possible way,
+            // but each unordered pair is only generated from its smaller half.
+            List<PlanTable> inputs = bushy ? levels.subList(1, count / 2 + 1) : List.of(levels.get(count - 1));
+
+            try (OptimizerMetrics.Timer ignored = metrics.timeLevel(count)) {
+                if (parallelism == 1) {
+                    levels.add(evaluateLevel(graph, levels, count, inputs, baseOps));
+                } else {
+                    levels.add(evaluateLevelInParallel(graph, levels, count, inputs, baseOps));
                 }
             }
+            metrics.setLevelSize(count, levels.get(count).size());
 
-            prevOps = nextOps;
+            if (!bushy) {
+                // Nothing looks further back than the previous level.
+                levels.set(count - 1, null);
+            }
         }
-        System.out.println(rounds); // TODO debugging only
 
-        return prevOps.get(new LinkedHashSet<>(baseRelations.keySet()));
+        return levels.get(graph.size()).get(graph.allMask());
+    }
+
+    private void extendPlan(QueryGraph graph, List<PlanTable> levels, int count, long leftMask, OperationTree left, OperationTree[] baseOps, PlanTable sink) {
+        int leftSize = Long.bitCount(leftMask);
+        if (!bushy) {
+            // Only relations with a predicate into the left side can be joined without a cross product.
+            for (long rightIds = graph.neighborhood(leftMask); rightIds != 0; rightIds &= rightIds - 1) {
+                joinWithBaseRelation(graph, sink, leftMask, left, Long.numberOfTrailingZeros(rightIds), baseOps);
+            }
+            return;
+        }
+
+        long neighborhood = graph.neighborhood(leftMask);
+        int rightSize = count - leftSize;
+        levels.get(rightSize).forEach((rightMask, right) -> {
+            if ((rightMask & leftMask) != 0 || (rightMask & neighborhood) == 0) return;
+            if (rightSize == leftSize && rightMask < leftMask) return;
+            joinSubplans(graph, sink, leftMask, left, rightMask, right);
+        });
+    }
+
+    private PlanTable evaluateLevel(QueryGraph graph, List<PlanTable> levels, int count, List<PlanTable> inputs, OperationTree[] baseOps) {
+        PlanTable nextOps = new PlanTable(levels.get(count - 1).size() * 2);
+        for (PlanTable input : inputs) {
+            input.forEach((leftMask, left) -> extendPlan(graph, levels, count, leftMask, left, baseOps, nextOps));
+        }
+        return nextOps;
+    }
+
+    // Every level's candidates only depend on earlier levels, so the level can be split freely.
+    // PlanTable.preferred is a total order on plans, so the result is the same whichever thread wins a merge.
+    private PlanTable evaluateLevelInParallel(QueryGraph graph, List<PlanTable> levels, int count, List<PlanTable> inputs, OperationTree[] baseOps) {
+        int numInputs = inputs.stream().mapToInt(PlanTable::size).sum();
+        long[] masks = new long[numInputs];
+        OperationTree[] trees = new OperationTree[numInputs];
+        int[] index = {0};
+        for (PlanTable input : inputs) {
+            input.forEach((mask, tree) -> {
+                masks[index[0]] = mask;
+                trees[index[0]] = tree;
+                index[0]++;
+            });
+        }
+
+        ConcurrentHashMap<Long, OperationTree> nextOps = new ConcurrentHashMap<>();
+        pool.invoke(new LevelTask(this, graph, levels, count, baseOps, masks, trees, 0, numInputs, nextOps));
+
+        PlanTable out = new PlanTable(nextOps.size());
+        nextOps.forEach(out::put);
+        return out;
+    }
+
+    private static final class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int BATCH_SIZE = 16;
+
+        private final JoinOptimizer optimizer;
+        private final QueryGraph graph;
+        private final List<PlanTable> levels;
+        private final int count;
+        private final OperationTree[] baseOps;
+        private final long[] masks;
+        private final OperationTree[] trees;
+        private final int start, end;
+        private final ConcurrentHashMap<Long, OperationTree> nextOps;
+
+        LevelTask(JoinOptimizer optimizer, QueryGraph graph, List<PlanTable> levels, int count, OperationTree[] baseOps, long[] masks, OperationTree[] trees, int start, int end, ConcurrentHashMap<Long, OperationTree> nextOps) {
+            this.optimizer = optimizer;
+            this.graph = graph;
+            this.levels = levels;
+            this.count = count;
+            this.baseOps = baseOps;
+            this.masks = masks;
+            this.trees = trees;
+            this.start = start;
+            this.end = end;
+            this.nextOps = nextOps;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > BATCH_SIZE) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new LevelTask(optimizer, graph, levels, count, baseOps, masks, trees, start, middle, nextOps),
+                        new LevelTask(optimizer, graph, levels, count, baseOps, masks, trees, middle, end, nextOps));
+                return;
+            }
+
+            // Candidates are reduced locally first so that the shared map only sees one plan per set from each batch.
+            PlanTable local = new PlanTable();
+            for (int i = start; i < end; i++) {
+                optimizer.extendPlan(graph, levels, count, masks[i], trees[i], baseOps, local);
+            }
+            local.forEach((mask, tree) -> nextOps.merge(mask, tree, PlanTable::preferred));
+        }
+    }
+
+    private static PlanTable baseMemo(QueryGraph graph, OperationTree[] baseOps) {
+        PlanTable memo = new PlanTable(graph.size() * graph.size());
+        for (int i = 0; i < graph.size(); i++) {
+            memo.put(1L << i, baseOps[i]);
+        }
+        return memo;
+    }
+
+    // Computes the plans for every set of relations that overlaps dirty. The memo must already hold the plans for all
+    // other sets, and the base relations.
+    private OperationTree optimizeByCsgCmp(QueryGraph graph, OperationTree[] baseOps, PlanTable memo, long dirty) {
+        DPccp.enumerate(graph, !bushy, (csg, cmp) -> {
+            if (((csg | cmp) & dirty) == 0) return;
+            OperationTree csgPlan = memo.get(csg), cmpPlan = memo.get(cmp);
+            // Branch and bound may have pruned every plan for one of the sides.
+            if (csgPlan == null || cmpPlan == null) return;
+            if (bushy) {
+                joinSubplans(graph, memo, csg, csgPlan, cmp, cmpPlan);
+                return;
+            }
+            // For left-deep plans, one side of each pair has to be a base relation.
+            if (Long.bitCount(cmp) == 1) {
+                joinWithBaseRelation(graph, memo, csg, csgPlan, Long.numberOfTrailingZeros(cmp), baseOps);
+            }
+            if (Long.bitCount(csg) == 1) {
+                joinWithBaseRelation(graph, memo, cmp, cmpPlan, Long.numberOfTrailingZeros(csg), baseOps);
+            }
+        });
+
+        Map<Integer, Long> levelSizes = new HashMap<>();
+        memo.forEach((mask, tree) -> levelSizes.merge(Long.bitCount(mask), 1L, Long::sum));
+        levelSizes.forEach(metrics::setLevelSize);
+        return memo.get(graph.allMask());
+    }
+
+    // Tries every predicate edge between the left plan and the new relation, keeping the cheapest result in the memo.
+    private void joinWithBaseRelation(QueryGraph graph, PlanTable memo, long leftMask, OperationTree left, int rightId, OperationTree[] baseOps) {
+        long mask = leftMask | (1L << rightId);
+        for (long leftIds = leftMask & graph.neighbors(rightId); leftIds != 0; leftIds &= leftIds - 1) {
+            int leftId = Long.numberOfTrailingZeros(leftIds);
+            tryJoin(graph, memo, mask, left, baseOps[rightId], leftId, rightId);
+        }
+    }
+
+    // Tries every predicate edge between the two plans with each plan on the build (right) side of the join.
+    private void joinSubplans(QueryGraph graph, PlanTable memo, long leftMask, OperationTree left, long rightMask, OperationTree right) {
+        long mask = leftMask | rightMask;
+        for (long leftIds = leftMask & graph.neighborhood(rightMask); leftIds != 0; leftIds &= leftIds - 1) {
+            int leftId = Long.numberOfTrailingZeros(leftIds);
+            for (long rightIds = rightMask & graph.neighbors(leftId); rightIds != 0; rightIds &= rightIds - 1) {
+                int rightId = Long.numberOfTrailingZeros(rightIds);
+                tryJoin(graph, memo, mask, left, right, leftId, rightId);
+                tryJoin(graph, memo, mask, right, left, rightId, leftId);
+            }
+        }
+    }
+
+    private void tryJoin(QueryGraph graph, PlanTable memo, long mask, OperationTree left, OperationTree right, int leftId, int rightId) {
+        if (!branchAndBound) {
+            merge(memo, mask, computeJoin(left, right, graph.relation(leftId), graph.relation(rightId), graph.predicates(leftId, rightId)));
+            return;
+        }
+
+        // Semijoins are never pushed into the build side, so the right plan's cost carries over into every plan above it
+        // and the join doesn't need to be computed at all if that already exceeds the bound.
+        if (right.getTotalCost() > upperBound.get()) {
+            metrics.candidatePruned();
+            return;
+        }
+        OperationTree tree = computeJoin(left, right, graph.relation(leftId), graph.relation(rightId), graph.predicates(leftId, rightId));
+        if (tree.getTotalCost() > upperBound.get()) {
+            metrics.candidatePruned();
+            return;
+        }
+        if (mask == graph.allMask()) {
+            upperBound.accumulate(tree.getTotalCost());
+        }
+        merge(memo, mask, tree);
+    }
+
+    private void merge(PlanTable memo, long mask, OperationTree tree) {
+        if (memo.merge(mask, tree)) {
+            metrics.candidateMerged();
+        }
+    }
+
+    // scanned is the relation as stored, before the value predicates, which is what the scan has to read.
+    private OperationTree makeTableScan(TableRef table, RelationStats scanned, RelationStats stats, Set<ValuePredicate> valuePredicates) {
+        // The value predicates have already been applied, so only the join columns are still needed.
+        return new OperationTree.TableScan(dropFinishedColumns(stats, table::equals), new RelationStats(scanned.numRows(), Map.of(), scanned.rowWidth()),
+                table, valuePredicates.stream().filter(x -> x.getColumn().table().equals(table)).collect(Collectors.toSet()),
+                equivalenceClasses.forRelation(table), costModel);
     }
 
     public OperationTree testSpecific(List<List<TableRef>> order, Map<TableRef, RelationStats> baseRelations, Set<JoinPredicate> predicates, Set<ValuePredicate> valuePredicates) {
-        applyPredicates(baseRelations, valuePredicates);
+        metrics = new OptimizerMetrics();
+        Map<TableRef, RelationStats> scanned = applyPredicates(baseRelations, valuePredicates);
+        joinPartners = findJoinPartners(predicates);
+        equivalenceClasses = new EquivalenceClasses(predicates);
 
         Map<TableRef, OperationTree> baseOps = new HashMap<>();
         for (Map.Entry<TableRef, RelationStats> baseRelation : baseRelations.entrySet()) {
-            OperationTree tree = new OperationTree.TableScan(baseRelation.getValue(), baseRelation.getKey(), valuePredicates.stream().filter(x -> x.getColumn().table().equals(baseRelation.getKey())).collect(Collectors.toSet()));
-            baseOps.put(baseRelation.getKey(), tree);
+            TableRef relation = baseRelation.getKey();
+            baseOps.put(relation, makeTableScan(relation, scanned.get(relation), baseRelation.getValue(), valuePredicates));
         }
 
         OperationTree curr = baseOps.get(order.get(0).get(0));
@@ -78,34 +508,76 @@ public class JoinOptimizer {
         return curr;
     }
 
-    private static void applyPredicates(Map<TableRef, RelationStats> baseRelations, Set<ValuePredicate> valuePredicates) {
+    // Costs the join tree of a plan again under new stats and value predicates, such as those of a query that only
+    // differs from the plan's in its literals. The relations and join predicates must be the ones it was optimized for.
+    public OperationTree recost(OperationTree plan, Map<TableRef, RelationStats> baseRelations, Set<JoinPredicate> predicates, Set<ValuePredicate> valuePredicates) {
+        metrics = new OptimizerMetrics();
+        Map<TableRef, RelationStats> scanned = applyPredicates(baseRelations, valuePredicates);
+        equivalenceClasses = new EquivalenceClasses(predicates);
+        joinPartners = findJoinPartners(equivalenceClasses.withImpliedPredicates(predicates));
+        return rebuild(plan, scanned, baseRelations, valuePredicates);
+    }
+
+    private OperationTree rebuild(OperationTree plan, Map<TableRef, RelationStats> scanned, Map<TableRef, RelationStats> baseRelations, Set<ValuePredicate> valuePredicates) {
+        if (plan instanceof OperationTree.TableScan scan) {
+            return makeTableScan(scan.getTable(), scanned.get(scan.getTable()), baseRelations.get(scan.getTable()), valuePredicates);
+        }
+        OperationTree.Join join = (OperationTree.Join) plan;
+        return computeJoin(rebuild(join.getLeftTree(), scanned, baseRelations, valuePredicates), rebuild(join.getRightTree(), scanned, baseRelations, valuePredicates),
+                join.getLeftTable(), join.getRightTable(), join.getPredicates());
+    }
+
+    // Applies the value predicates to the stats in the map, returning a copy of the stats from before.
+    private static Map<TableRef, RelationStats> applyPredicates(Map<TableRef, RelationStats> baseRelations, Set<ValuePredicate> valuePredicates) {
+        Map<TableRef, RelationStats> before = new HashMap<>(baseRelations);
         for (ValuePredicate valuePredicate : valuePredicates) {
             baseRelations.computeIfPresent(valuePredicate.getColumn().table(), (table, stats) -> valuePredicate.apply(stats));
         }
+        return before;
+    }
+
+    private static Map<Column, Set<TableRef>> findJoinPartners(Set<JoinPredicate> predicates) {
+        Map<Column, Set<TableRef>> partners = new HashMap<>();
+        for (JoinPredicate predicate : predicates) {
+            partners.computeIfAbsent(predicate.a(), x -> new HashSet<>()).add(predicate.b().table());
+            partners.computeIfAbsent(predicate.b(), x -> new HashSet<>()).add(predicate.a().table());
+        }
+        return partners;
     }
 
-    private int rounds = 0;
+    // Keeps only the columns that a join with some relation outside the plan could still read.
+    private RelationStats dropFinishedColumns(RelationStats stats, Predicate<TableRef> inPlan) {
+        if (joinPartners == null) return stats;
+        // Worked out once here, so the view only has to hold on to the columns and not to the plan.
+        Set<Column> kept = new HashSet<>();
+        for (Map.Entry<Column, Set<TableRef>> entry : joinPartners.entrySet()) {
+            if (inPlan.test(entry.getKey().table()) && !entry.getValue().stream().allMatch(inPlan)) {
+                kept.add(entry.getKey());
+            }
+        }
+        return stats.retainColumns(kept);
+    }
 
-    private OperationTree computeJoin(OperationTree left, OperationTree right, TableRef leftTable, TableRef rightTable, Set<JoinPredicate> relevantPredicates) {
-        rounds++;
-        double numRows = left.getStats().numRows() * right.getStats().numRows();
-        Map<Column, ColumnStats> baseColumnStats = new HashMap<>();
-        baseColumnStats.putAll(left.getStats().columnStats());
-        baseColumnStats.putAll(right.getStats().columnStats());
-        RelationStats stats = new RelationStats(numRows, baseColumnStats);
+    OperationTree computeJoin(OperationTree left, OperationTree right, TableRef leftTable, TableRef rightTable, Set<JoinPredicate> relevantPredicates) {
+        metrics.joinComputed();
+        RelationStats stats = RelationStats.crossProduct(left.getStats(), right.getStats());
+        Set<TableRef> leftTables = left.getTablesSet(), rightTables = right.getTablesSet();
+        Predicate<TableRef> inJoin = table -> leftTables.contains(table) || rightTables.contains(table);
 
-        Set<JoinPredicate> allPredicates = new HashSet<>(left.collectJoins());
-        allPredicates.addAll(right.collectJoins());
+        int[] equivalences = equivalenceClasses.merge(left.getEquivalences(), right.getEquivalences());
         for (JoinPredicate predicate : relevantPredicates) {
+            // Columns that are already equal, e.g. through the predicate an implied one was derived from, can't
+            // filter anything more, and counting their selectivity again would underestimate the result.
+            if (equivalenceClasses.isRedundant(equivalences, predicate)) continue;
             if (predicate.a().table().equals(rightTable)) {
                 left = left.pushSemijoin(predicate.b(), stats.columnStats().get(predicate.b()).semijoin(stats.columnStats().get(predicate.a())));
             } else {
                 left = left.pushSemijoin(predicate.a(), stats.columnStats().get(predicate.a()).semijoin(stats.columnStats().get(predicate.b())));
             }
-            stats = predicate.apply(stats, allPredicates);
-            allPredicates.add(predicate);
+            stats = predicate.apply(stats, equivalenceClasses.join(equivalences, predicate));
         }
 
-        return new OperationTree.Join(stats, left, right, leftTable, rightTable, relevantPredicates);
+        stats = dropFinishedColumns(stats, inJoin);
+        return new OperationTree.Join(stats, left, right, leftTable, rightTable, relevantPredicates, equivalences, costModel);
     }
 }
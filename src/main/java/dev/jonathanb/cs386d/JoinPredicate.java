@@ -4,37 +4,25 @@ import java.util.*;
 
 // This optimizer only handles conjunctions of equality predicates.
 // The benchmark system applies all other predicates using views.
-public record JoinPredicate(Column a, Column b) {
+// Implied predicates aren't written in the query, but follow from its other predicates by transitivity.
+public record JoinPredicate(Column a, Column b, boolean implied) {
+    public JoinPredicate(Column a, Column b) {
+        this(a, b, false);
+    }
 
     @Override
     public String toString() {
-        return a.toShortString() + " = " + b.toShortString();
+        return a.toShortString() + " = " + b.toShortString() + (implied ? " (implied)" : "");
     }
 
-    public RelationStats apply(RelationStats stats, Collection<JoinPredicate> existingPredicates) {
+    // equalColumns are all the columns that are equal to each other once this predicate is applied, including a and b.
+    public RelationStats apply(RelationStats stats, Collection<Column> equalColumns) {
         ColumnStats aStats = stats.columnStats().get(a);
         ColumnStats bStats = stats.columnStats().get(b);
         if (aStats == null || bStats == null) {
             throw new IllegalArgumentException("Missing column for " + this + " in " + stats);
         }
 
-        Set<Column> equalColumns = new HashSet<>();
-        equalColumns.add(a);
-        equalColumns.add(b);
-        while (true) {
-            boolean changed = false;
-            for (JoinPredicate pred : existingPredicates) {
-                if (equalColumns.contains(pred.a) ^ equalColumns.contains(pred.b)) {
-                    equalColumns.add(pred.a);
-                    equalColumns.add(pred.b);
-                    changed = true;
-                }
-            }
-            if (!changed) {
-                break;
-            }
-        }
-
         return stats.applySelect(aStats.join(bStats), equalColumns);
     }
 }
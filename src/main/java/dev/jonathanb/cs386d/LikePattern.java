@@ -0,0 +1,127 @@
+package dev.jonathanb.cs386d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// A compiled LIKE pattern (with \ as the escape character). Patterns that only use % are matched by looking for their
+// literal pieces in order, which covers almost every JOB pattern; the rest fall back to a regex. Compiled patterns are
+// cached, so the same pattern in many queries, or costed many times, is only parsed once.
+final class LikePattern {
+    private static final int MAX_CACHED = 4096;
+    private static final Map<String, LikePattern> CACHE = new ConcurrentHashMap<>();
+
+    // Same guesses as Postgres' like_selectivity for the characters of a pattern.
+    private static final double FIXED_CHAR_SEL = 0.2, ANY_CHAR_SEL = 0.9, FULL_WILDCARD_SEL = 5.0;
+
+    private final String prefix;
+    private final boolean exact, prefixOnly;
+    private final double restSelectivity;
+    // The literal text between % wildcards, or null if the pattern needs the regex.
+    private final String[] pieces;
+    private final Pattern regex;
+
+    private LikePattern(String pattern) {
+        List<String> pieces = new ArrayList<>();
+        StringBuilder piece = new StringBuilder(), regex = new StringBuilder(), prefix = null;
+        boolean underscore = false, started = false;
+        double restSelectivity = 1;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            boolean literal = c != '%' && c != '_';
+            if (c == '\\' && i + 1 < pattern.length()) {
+                c = pattern.charAt(++i);
+                literal = true;
+            }
+            if (!literal && prefix == null) {
+                prefix = new StringBuilder(piece);
+            }
+            if (literal) {
+                piece.append(c);
+                regex.append(Pattern.quote(String.valueOf(c)));
+            } else if (c == '%') {
+                pieces.add(piece.toString());
+                piece.setLength(0);
+                regex.append(".*");
+            } else {
+                underscore = true;
+                regex.append('.');
+            }
+
+            // Everything after the prefix is guessed at character by character, except a leading %.
+            if (prefix == null) continue;
+            if (literal) {
+                restSelectivity *= FIXED_CHAR_SEL;
+            } else if (c == '_') {
+                restSelectivity *= ANY_CHAR_SEL;
+            } else if (started) {
+                restSelectivity *= FULL_WILDCARD_SEL;
+            }
+            started = true;
+        }
+        pieces.add(piece.toString());
+
+        this.exact = prefix == null;
+        this.prefix = exact ? piece.toString() : prefix.toString();
+        this.prefixOnly = !exact && !underscore && pieces.size() == 2 && pieces.get(1).isEmpty();
+        this.restSelectivity = Math.min(restSelectivity, 1);
+        this.pieces = underscore ? null : pieces.toArray(String[]::new);
+        this.regex = underscore ? Pattern.compile(regex.toString(), Pattern.DOTALL) : null;
+    }
+
+    static LikePattern compile(String pattern) {
+        LikePattern compiled = CACHE.get(pattern);
+        if (compiled == null) {
+            // Patterns come from query text, so this only fills up when a long run sees many different literals.
+            if (CACHE.size() >= MAX_CACHED) CACHE.clear();
+            compiled = CACHE.computeIfAbsent(pattern, LikePattern::new);
+        }
+        return compiled;
+    }
+
+    // The literal text before the first wildcard, which every match starts with.
+    String prefix() {
+        return prefix;
+    }
+
+    // No wildcards at all, so the pattern only matches its prefix.
+    boolean isExact() {
+        return exact;
+    }
+
+    // The prefix followed by nothing but %, so the matches are exactly the strings in a range.
+    boolean isPrefixOnly() {
+        return prefixOnly;
+    }
+
+    // Heuristic fraction of all strings that start with the prefix, for when there's no histogram to look it up in.
+    double prefixSelectivity() {
+        return Math.pow(FIXED_CHAR_SEL, prefix.length());
+    }
+
+    // Heuristic fraction of the strings starting with the prefix that match the rest of the pattern.
+    double restSelectivity() {
+        return restSelectivity;
+    }
+
+    boolean matches(HistogramValue value) {
+        return matches(value.obj().toString());
+    }
+
+    boolean matches(String s) {
+        if (regex != null) return regex.matcher(s).matches();
+        int n = pieces.length;
+        if (n == 1) return s.equals(pieces[0]);
+        int from = pieces[0].length(), end = s.length() - pieces[n - 1].length();
+        if (end < from || !s.startsWith(pieces[0]) || !s.endsWith(pieces[n - 1])) return false;
+        // With only % wildcards, taking the first place each piece fits never rules out a match.
+        for (int i = 1; i < n - 1; i++) {
+            int at = s.indexOf(pieces[i], from);
+            if (at < 0 || at + pieces[i].length() > end) return false;
+            from = at + pieces[i].length();
+        }
+        return true;
+    }
+}
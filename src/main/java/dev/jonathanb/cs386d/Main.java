@@ -1,11 +1,6 @@
 package dev.jonathanb.cs386d;
 
-import org.postgresql.core.BaseConnection;
-import org.postgresql.core.TypeInfo;
-import org.postgresql.jdbc.TypeInfoCache;
-
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -13,19 +8,41 @@ import java.sql.*;
 import java.util.*;
 
 public class Main {
+    private static final String DATABASE_URL = "jdbc:postgresql://localhost:5432/";
+    private static final StatsSnapshotStore SNAPSHOTS = StatsSnapshotStore.fromSystemProperties();
+    private static final CostModel COST_MODEL = CostModel.fromSystemProperties();
+
     public static void main(String[] args) throws SQLException, IOException {
-        Connection conn = DriverManager.getConnection("jdbc:postgresql://localhost:5432/");
-//        test(BenchmarkQuery.loadFromBenchmark("28a"), conn);
-//        test(BenchmarkQuery.loadFromBenchmark("29a"), conn);
-//        test(BenchmarkQuery.loadFromBenchmark("10a"), conn);
-//        test(BenchmarkQuery.loadFromBenchmark("27a"), conn);
-//        test(BenchmarkQuery.loadFromBenchmark("5a"), conn);
+        Connection conn;
+        try {
+            conn = DriverManager.getConnection(DATABASE_URL);
+        } catch (SQLException e) {
+            // Without a database the TTJ output can't be generated, but the optimizer can still run from snapshots.
+            if (SNAPSHOTS == null) throw e;
+            System.err.println("Database unavailable, using stats snapshots only: " + e.getMessage());
+            test(BenchmarkQuery.loadFromBenchmark("10a"), null);
+            return;
+        }
+        try (conn; StatsLoader loader = new StatsLoader(DATABASE_URL, 3, SNAPSHOTS)) {
+            run(conn, loader);
+        }
+    }
+
+    private static void run(Connection conn, StatsLoader loader) throws SQLException, IOException {
+//        test(BenchmarkQuery.loadFromBenchmark("28a"), loader);
+//        test(BenchmarkQuery.loadFromBenchmark("29a"), loader);
+//        test(BenchmarkQuery.loadFromBenchmark("10a"), loader);
+//        test(BenchmarkQuery.loadFromBenchmark("27a"), loader);
+//        test(BenchmarkQuery.loadFromBenchmark("5a"), loader);
 
-        generate("10a", conn);
+        generate("10a", conn, loader);
 
         BenchmarkQuery query = BenchmarkQuery.loadFromBenchmark("10a");
-        Map<TableRef, RelationStats> stats = fetchStats(query.relations(), conn);
-        OperationTree myTree = new JoinOptimizer().optimize(stats, query.predicates(), query.valuePredicates());
+        Map<TableRef, RelationStats> stats = fetchStats(query, loader);
+        JoinOptimizer optimizer = new JoinOptimizer();
+        optimizer.setCostModel(COST_MODEL);
+        // The optimizer applies the value predicates to the map it's given, and the sample tree below needs them too.
+        OperationTree myTree = optimizer.optimize(new HashMap<>(stats), query.predicates(), query.valuePredicates());
         System.out.println(TTJBenchmarkWriter.writeTree(query, "q10a_", myTree, conn));
         System.out.println("My tree (outermost is final result):\n" + myTree);
         TableRef ci = new TableRef("ci", new Table("imdb", "cast_info"));
@@ -36,7 +53,7 @@ public class Main {
         TableRef ct = new TableRef("ct", new Table("imdb", "company_type"));
         TableRef cn = new TableRef("cn", new Table("imdb", "company_name"));
 
-        System.out.println("\nSample tree:\n" + new JoinOptimizer().testSpecific(
+        System.out.println("\nSample tree:\n" + optimizer.testSpecific(
                 List.of(
                         List.of(mc),
                         List.of(mc, cn),
@@ -49,120 +66,87 @@ public class Main {
                 stats, query.predicates(), query.valuePredicates()));
     }
 
-    public static void test(BenchmarkQuery query, Connection conn) throws SQLException {
+    // loader is null to run from the stats snapshots alone.
+    @SuppressWarnings("try")
+    public static void test(BenchmarkQuery query, StatsLoader loader) throws SQLException, IOException {
         System.out.println(query);
         System.out.println("Fetching stats...");
-        Map<TableRef, RelationStats> stats = fetchStats(query.relations(), conn);
+        OptimizerMetrics metrics = new OptimizerMetrics();
+        Map<TableRef, RelationStats> stats;
+        try (OptimizerMetrics.Timer ignored = metrics.time(OptimizerMetrics.Phase.STATS_FETCH)) {
+            stats = fetchStats(query, loader);
+        }
         System.out.println("Stats loaded.");
-        System.out.println(new JoinOptimizer().optimize(
+        JoinOptimizer optimizer = new JoinOptimizer();
+        optimizer.setCostModel(COST_MODEL);
+        System.out.println(optimizer.optimize(
                 stats,
                 query.predicates(),
-                query.valuePredicates()
+                query.valuePredicates(),
+                metrics
         ));
+        System.out.println(metrics);
     }
 
-    public static void generate(String queryName, Connection conn) throws IOException, SQLException {
+    public static void compare(BenchmarkQuery query, StatsLoader loader) throws SQLException, IOException {
+        Map<TableRef, RelationStats> stats = fetchStats(query, loader);
+        for (JoinOptimizer.Enumeration enumeration : JoinOptimizer.Enumeration.values()) {
+            for (boolean bushy : new boolean[]{false, true}) {
+                JoinOptimizer optimizer = new JoinOptimizer(enumeration);
+                optimizer.setBushy(bushy);
+                optimizer.setCostModel(COST_MODEL);
+                long start = System.nanoTime();
+                // The optimizer applies the value predicates to the map it's given, so each run needs its own copy.
+                OperationTree tree = optimizer.optimize(new HashMap<>(stats), query.predicates(), query.valuePredicates());
+                long elapsed = System.nanoTime() - start;
+                System.out.println(enumeration + (bushy ? " (bushy)" : "") + ": " + (elapsed / 1_000_000.0) + " ms, cost = " + tree.getTotalCost() + "\n" + tree);
+            }
+        }
+    }
+
+    @SuppressWarnings("try")
+    public static void generate(String queryName, Connection conn, StatsLoader loader) throws IOException, SQLException {
         BenchmarkQuery query = BenchmarkQuery.loadFromBenchmark(queryName);
-        Map<TableRef, RelationStats> stats = fetchStats(query.relations(), conn);
-        OperationTree tree = new JoinOptimizer().optimize(stats, query.predicates(), query.valuePredicates());
-        String json = TTJBenchmarkWriter.writeTree(query, "q" + queryName + "_", tree, conn);
+        OptimizerMetrics metrics = new OptimizerMetrics();
+        Map<TableRef, RelationStats> stats;
+        try (OptimizerMetrics.Timer ignored = metrics.time(OptimizerMetrics.Phase.STATS_FETCH)) {
+            stats = fetchStats(query, loader);
+        }
+        JoinOptimizer optimizer = new JoinOptimizer();
+        optimizer.setCostModel(COST_MODEL);
+        OperationTree tree = optimizer.optimize(stats, query.predicates(), query.valuePredicates(), metrics);
+        String json;
+        try (OptimizerMetrics.Timer ignored = metrics.time(OptimizerMetrics.Phase.OUTPUT)) {
+            json = TTJBenchmarkWriter.writeTree(query, "q" + queryName + "_", tree, conn);
+        }
+        System.out.println(metrics);
 
         Path path = Paths.get(".").toAbsolutePath();
         while (!Files.isDirectory(path.resolve("results/job/with_predicates")) && path.getNameCount() > 1) {
             path = path.getParent();
         }
-        Files.write(path.resolve("results/job/with_predicates/TTJHP_org.zhu45.treetracker.benchmark.job.q"
-                + queryName.replaceAll("[^0-9]", "") + ".Query" + queryName + "FindOptJoinTree_planStatistics.json"), List.of(json));
+        Files.write(planStatisticsFile(path.resolve("results/job/with_predicates"), queryName), List.of(json));
     }
 
-    private static Map<TableRef, RelationStats> fetchStats(Set<TableRef> relations, Connection conn) throws SQLException {
-        Map<TableRef, RelationStats> stats = new HashMap<>();
-        for (TableRef relation : relations) {
-            RelationStats relationStats = fetchStatsForRelation(conn, relation);
-            stats.put(relation, relationStats);
-        }
-        return stats;
+    // Where TTJ's benchmark expects the join tree of a query.
+    static Path planStatisticsFile(Path directory, String queryName) {
+        return directory.resolve("TTJHP_org.zhu45.treetracker.benchmark.job.q" + queryName.replaceAll("[^0-9]", "")
+                + ".Query" + queryName + "FindOptJoinTree_planStatistics.json");
     }
 
-    private static RelationStats fetchStatsForRelation(Connection conn, TableRef relation) throws SQLException {
-        PreparedStatement statsStmt = conn.prepareStatement("SELECT * FROM pg_catalog.pg_stats WHERE schemaname = ? AND tablename = ?");
-        statsStmt.setString(1, relation.baseTable().schemaName());
-        statsStmt.setString(2, relation.baseTable().tableName());
-        statsStmt.execute();
-
-        PreparedStatement typesStmt = conn.prepareStatement("SELECT pg_attribute.attname, pg_attribute.atttypid FROM pg_attribute, pg_class, pg_namespace WHERE pg_attribute.attrelid = pg_class.oid AND pg_class.relname = ? AND pg_class.relnamespace = pg_namespace.oid AND pg_namespace.nspname = ?;");
-        typesStmt.setString(1, relation.baseTable().tableName());
-        typesStmt.setString(2, relation.baseTable().schemaName());
-        typesStmt.execute();
-
-        PreparedStatement countStmt = conn.prepareStatement("SELECT reltuples FROM pg_class, pg_namespace WHERE relname = ? AND pg_class.relnamespace = pg_namespace.oid AND pg_namespace.nspname = ?;");
-        countStmt.setString(1, relation.baseTable().tableName());
-        countStmt.setString(2, relation.baseTable().schemaName());
-        countStmt.execute();
-
-        ResultSet typesResults = typesStmt.getResultSet();
-        Map<Column, Integer> columnTypes = new HashMap<>();
-        while (typesResults.next()) {
-            columnTypes.put(new Column(relation, typesResults.getString("attname")), typesResults.getInt("atttypid"));
+    // Without a loader, which needs the database, only the snapshots can be used.
+    private static Map<TableRef, RelationStats> fetchStats(BenchmarkQuery query, StatsLoader loader) throws SQLException, IOException {
+        if (loader != null) {
+            return loader.load(query);
         }
-
-        ResultSet countResults = countStmt.getResultSet();
-        if (!countResults.next()) {
-            throw new IllegalArgumentException("Missing count for table " + relation);
-        }
-        long count = countResults.getLong("reltuples");
-
-        ResultSet resultSet = statsStmt.getResultSet();
-        Map<Column, ColumnStats> columns = new HashMap<>();
-        while (resultSet.next()) {
-            Column col = new Column(relation, resultSet.getString("attname"));
-
-            double nullFrac = resultSet.getDouble("null_frac");
-            double nDistinctDouble = resultSet.getDouble("n_distinct");
-            long nDistinct;
-            if (nDistinctDouble < 0) {
-                nDistinct = Math.round(-1 * count * nDistinctDouble);
-            } else {
-                nDistinct = Math.round(nDistinctDouble);
-            }
-            Map<HistogramValue, Double> mostCommon = new HashMap<>();
-            if (resultSet.getArray("most_common_vals") != null) {
-                Object[] mostCommonVals = getGenericArray(conn, resultSet.getArray("most_common_vals"), columnTypes.get(col));
-                Number[] mostCommonFreqs = (Number[]) resultSet.getArray("most_common_freqs").getArray();
-                for (int i = 0; i < mostCommonVals.length; i++) {
-                    mostCommon.put(new HistogramValue(mostCommonVals[i]), mostCommonFreqs[i].doubleValue());
-                }
-            }
-            List<HistogramValue> histogram = new ArrayList<>();
-            if (resultSet.getArray("histogram_bounds") != null) {
-                Object[] histogramResults = getGenericArray(conn, resultSet.getArray("histogram_bounds"), columnTypes.get(col));
-                histogram = Arrays.stream(histogramResults).map(HistogramValue::new).toList();
+        Map<TableRef, RelationStats> stats = new HashMap<>();
+        for (TableRef relation : query.relations()) {
+            RelationStats relationStats = SNAPSHOTS.load(relation, null);
+            if (relationStats == null) {
+                throw new IllegalStateException("No stats snapshot for " + relation.baseTable());
             }
-
-            long nDistinctInHistogram = nDistinct - mostCommon.size();
-            double fractionInHistogram = 1 - nullFrac - mostCommon.values().stream().reduce(0.0, Double::sum);
-            columns.put(col, new ColumnStats(nullFrac, nDistinct, mostCommon, HistogramRange.makeRange(histogram, nDistinctInHistogram, fractionInHistogram)));
-        }
-
-        return new RelationStats(count, columns);
-    }
-
-    @SuppressWarnings("unchecked")
-    private static Object[] getGenericArray(Connection conn, Array array, Integer elementType) throws SQLException {
-        // This is very hacky but the Postgres driver doesn't support generic arrays currently.
-        try {
-            TypeInfo typeInfo = ((BaseConnection) conn).getTypeInfo();
-
-            Field arrayOidToDelimiter = TypeInfoCache.class.getDeclaredField("arrayOidToDelimiter");
-            arrayOidToDelimiter.setAccessible(true);
-            ((Map<Integer, Character>) arrayOidToDelimiter.get(typeInfo)).put(2277, ',');
-
-            Field pgArrayToPgType = TypeInfoCache.class.getDeclaredField("pgArrayToPgType");
-            pgArrayToPgType.setAccessible(true);
-            ((Map<Integer, Integer>) pgArrayToPgType.get(typeInfo)).put(2277, elementType);
-        } catch (ReflectiveOperationException e) {
-            throw new RuntimeException(e);
+            stats.put(relation, relationStats);
         }
-        return (Object[]) array.getArray();
+        return stats;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,104 @@
+package dev.jonathanb.cs386d;
+
+import java.util.*;
+
+// An immutable map from the most common values of a column to their frequencies. The entries are kept in parallel
+// arrays sorted by value, so two columns' values can be matched up with one merge pass instead of hash lookups.
+public final class MostCommonValues extends AbstractMap<HistogramValue, Double> {
+    private static final MostCommonValues EMPTY = new MostCommonValues(new HistogramValue[0], new double[0]);
+
+    private final HistogramValue[] values;
+    private final double[] frequencies;
+    private final double total;
+
+    // The values must already be sorted and distinct.
+    MostCommonValues(HistogramValue[] values, double[] frequencies) {
+        if (values.length != frequencies.length) {
+            throw new IllegalArgumentException("Got " + values.length + " values but " + frequencies.length + " frequencies");
+        }
+        this.values = values;
+        this.frequencies = frequencies;
+        double total = 0;
+        for (double frequency : frequencies) {
+            total += frequency;
+        }
+        this.total = total;
+    }
+
+    public static MostCommonValues of(Map<HistogramValue, Double> map) {
+        if (map instanceof MostCommonValues mcv) return mcv;
+        if (map.isEmpty()) return EMPTY;
+        HistogramValue[] values = map.keySet().toArray(new HistogramValue[0]);
+        Arrays.sort(values);
+        double[] frequencies = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            frequencies[i] = map.get(values[i]);
+        }
+        return new MostCommonValues(values, frequencies);
+    }
+
+    public HistogramValue value(int index) {
+        return values[index];
+    }
+
+    public double frequency(int index) {
+        return frequencies[index];
+    }
+
+    // Sum of all the frequencies.
+    public double total() {
+        return total;
+    }
+
+    // Returns a negative number if the value isn't present.
+    public int indexOf(Object value) {
+        if (!(value instanceof HistogramValue key)) return -1;
+        return Arrays.binarySearch(values, key);
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Double get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : frequencies[index];
+    }
+
+    @Override
+    public Set<Entry<HistogramValue, Double>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<HistogramValue, Double>> iterator() {
+                return new Iterator<>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < values.length;
+                    }
+
+                    @Override
+                    public Entry<HistogramValue, Double> next() {
+                        if (next >= values.length) throw new NoSuchElementException();
+                        Entry<HistogramValue, Double> entry = new SimpleImmutableEntry<>(values[next], frequencies[next]);
+                        next++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+}
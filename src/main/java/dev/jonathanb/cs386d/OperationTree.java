@@ -1,19 +1,25 @@
 package dev.jonathanb.cs386d;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public abstract class OperationTree {
     private final RelationStats stats;
-    private final Set<TableRef> tables;
     private final double totalCost;
-
-    protected OperationTree(RelationStats stats, Set<TableRef> tables, double totalCost) {
+    // Classes of columns made equal by the predicates applied in this plan, see EquivalenceClasses.
+    private final int[] equivalences;
+    // Kept so that pushing a semijoin into the plan costs the new plan the same way.
+    private final CostModel costModel;
+    // Computed on first use, since most candidate plans are discarded without ever needing it.
+    private volatile Set<TableRef> tables;
+
+    protected OperationTree(RelationStats stats, double totalCost, int[] equivalences, CostModel costModel) {
         this.stats = stats;
-        this.tables = tables;
         this.totalCost = totalCost;
+        this.equivalences = equivalences;
+        this.costModel = costModel;
     }
 
     public RelationStats getStats() {
@@ -21,6 +27,13 @@ public abstract class OperationTree {
     }
 
     public Set<TableRef> getTablesSet() {
+        Set<TableRef> tables = this.tables;
+        if (tables == null) {
+            Set<TableRef> collected = new HashSet<>();
+            collectTables(collected);
+            tables = Collections.unmodifiableSet(collected);
+            this.tables = tables;
+        }
         return tables;
     }
 
@@ -28,6 +41,16 @@ public abstract class OperationTree {
         return totalCost;
     }
 
+    int[] getEquivalences() {
+        return equivalences;
+    }
+
+    public CostModel getCostModel() {
+        return costModel;
+    }
+
+    public abstract boolean containsTable(TableRef table);
+
     public final String toString() {
         // TODO format properly
         StringBuilder builder = new StringBuilder();
@@ -43,16 +66,21 @@ public abstract class OperationTree {
 
     protected abstract void collectJoins(Set<JoinPredicate> joins);
 
+    protected abstract void collectTables(Set<TableRef> tables);
+
     protected abstract void toString(StringBuilder builder, int depth);
 
     public abstract OperationTree pushSemijoin(Column column, ColumnSelectivity selectivity);
 
     public static class TableScan extends OperationTree {
         private final TableRef table;
+        // The whole relation as stored, which the scan reads no matter how few of its rows are kept.
+        private final RelationStats scanned;
         private Set<ValuePredicate> predicates;
-        public TableScan(RelationStats stats, TableRef table, Set<ValuePredicate> valuePredicates) {
-            super(stats, Set.of(table), stats.numRows());
+        public TableScan(RelationStats stats, RelationStats scanned, TableRef table, Set<ValuePredicate> valuePredicates, int[] equivalences, CostModel costModel) {
+            super(stats, costModel.scanCost(scanned, stats), equivalences, costModel);
             this.table = table;
+            this.scanned = scanned;
             this.predicates = valuePredicates;
         }
 
@@ -65,13 +93,18 @@ public abstract class OperationTree {
 
         @Override
         public OperationTree pushSemijoin(Column column, ColumnSelectivity selectivity) {
-            return new TableScan(getStats().applySelect(selectivity, Set.of(column)), table, predicates);
+            return new TableScan(getStats().applySelect(selectivity, Set.of(column)), scanned, table, predicates, getEquivalences(), getCostModel());
         }
 
         public TableRef getTable() {
             return table;
         }
 
+        @Override
+        public boolean containsTable(TableRef table) {
+            return this.table.equals(table);
+        }
+
         @Override
         protected void toString(StringBuilder builder, int depth) {
             builder.append("|".repeat(depth));
@@ -81,6 +114,11 @@ public abstract class OperationTree {
         @Override
         protected void collectJoins(Set<JoinPredicate> joins) {
         }
+
+        @Override
+        protected void collectTables(Set<TableRef> tables) {
+            tables.add(table);
+        }
     }
 
     public static class Join extends OperationTree {
@@ -88,9 +126,8 @@ public abstract class OperationTree {
         private final Set<JoinPredicate> predicates;
         private final TableRef leftTable, rightTable;
 
-        public Join(RelationStats stats, OperationTree leftTree, OperationTree rightTree, TableRef leftTable, TableRef rightTable, Set<JoinPredicate> predicates) {
-            super(stats, Stream.concat(leftTree.tables.stream(), rightTree.tables.stream()).collect(Collectors.toSet()),
-                    leftTree.totalCost + rightTree.totalCost + stats.numRows());
+        public Join(RelationStats stats, OperationTree leftTree, OperationTree rightTree, TableRef leftTable, TableRef rightTable, Set<JoinPredicate> predicates, int[] equivalences, CostModel costModel) {
+            super(stats, leftTree.totalCost + rightTree.totalCost + costModel.joinCost(leftTree.getStats(), rightTree.getStats(), stats), equivalences, costModel);
             this.leftTree = leftTree;
             this.rightTree = rightTree;
             this.leftTable = leftTable;
@@ -106,13 +143,22 @@ public abstract class OperationTree {
             return rightTree;
         }
 
+        public Set<JoinPredicate> getPredicates() {
+            return predicates;
+        }
+
+        @Override
+        public boolean containsTable(TableRef table) {
+            return leftTree.containsTable(table) || rightTree.containsTable(table);
+        }
+
         @Override
         public OperationTree pushSemijoin(Column column, ColumnSelectivity selectivity) {
-            if (column.table().equals(rightTable)) {
+            if (rightTree.containsTable(column.table())) {
                 // Don't push right because hash joins still need to read everything from the right side.
-                return new Join(getStats().applySelect(selectivity, Set.of(column)), leftTree, rightTree, leftTable, rightTable, predicates);
+                return new Join(getStats().applySelect(selectivity, Set.of(column)), leftTree, rightTree, leftTable, rightTable, predicates, getEquivalences(), getCostModel());
             }
-            return new Join(getStats().applySelect(selectivity, Set.of(column)), leftTree.pushSemijoin(column, selectivity), rightTree, leftTable, rightTable, predicates);
+            return new Join(getStats().applySelect(selectivity, Set.of(column)), leftTree.pushSemijoin(column, selectivity), rightTree, leftTable, rightTable, predicates, getEquivalences(), getCostModel());
         }
 
         @Override
@@ -141,6 +187,12 @@ public abstract class OperationTree {
             rightTree.collectJoins(joins);
         }
 
+        @Override
+        protected void collectTables(Set<TableRef> tables) {
+            leftTree.collectTables(tables);
+            rightTree.collectTables(tables);
+        }
+
         public TableRef getLeftTable() {
             return leftTable;
         }
@@ -0,0 +1,204 @@
+package dev.jonathanb.cs386d;
+
+import jdk.jfr.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// What one optimization did and where its time went. The optimizer records everything from applying the predicates to
+// the end of the enumeration; callers can time the phases around it, like fetching stats and writing the plan, into
+// the same object. Every phase is also emitted as a JFR event, along with a summary event per optimization, so a
+// flight recording of a real run shows the same breakdown.
+public final class OptimizerMetrics {
+    public enum Phase {
+        STATS_FETCH,
+        // Value predicates, implied join predicates and the query graph.
+        PREDICATES,
+        ENUMERATION,
+        OUTPUT
+    }
+
+    @Name("dev.jonathanb.cs386d.OptimizerPhase")
+    @Label("Optimizer Phase")
+    @Category("Join Optimizer")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        // Number of relations in the plans built, for the levels of DP_SIZE; 0 otherwise.
+        @Label("Level")
+        int level;
+    }
+
+    @Name("dev.jonathanb.cs386d.Optimization")
+    @Label("Optimization")
+    @Category("Join Optimizer")
+    static class OptimizationEvent extends Event {
+        @Label("Enumeration")
+        String enumeration;
+        @Label("Relations")
+        int relations;
+        @Label("Joins Computed")
+        long joinsComputed;
+        @Label("Candidates Merged")
+        long candidatesMerged;
+        @Label("Candidates Pruned")
+        long candidatesPruned;
+        @Label("Memo Size")
+        long memoSize;
+        @Label("Cost")
+        double cost;
+    }
+
+    // Times a phase until it's closed.
+    public final class Timer implements AutoCloseable {
+        private final Phase phase;
+        private final int level;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long start = System.nanoTime();
+
+        private Timer(Phase phase, int level) {
+            this.phase = phase;
+            this.level = level;
+            event.begin();
+        }
+
+        @Override
+        public void close() {
+            long elapsed = System.nanoTime() - start;
+            if (level > 0) {
+                synchronized (levelNanos) {
+                    levelNanos.put(level, elapsed);
+                }
+            } else {
+                synchronized (phaseNanos) {
+                    phaseNanos.merge(phase, elapsed, Long::sum);
+                }
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.toString();
+                event.level = level;
+                event.commit();
+            }
+        }
+    }
+
+    private final Map<Phase, Long> phaseNanos = new EnumMap<>(Phase.class);
+    private final SortedMap<Integer, Long> levelNanos = new TreeMap<>();
+    // Written from whichever thread finishes a level, which isn't always the one reading the metrics.
+    private final SortedMap<Integer, Long> levelSizes = new ConcurrentSkipListMap<>();
+    private final LongAdder joinsComputed = new LongAdder();
+    private final LongAdder candidatesMerged = new LongAdder();
+    private final LongAdder candidatesPruned = new LongAdder();
+    private final OptimizationEvent event = new OptimizationEvent();
+    private JoinOptimizer.Enumeration enumeration;
+    private double cost = Double.NaN;
+
+    public Timer time(Phase phase) {
+        return new Timer(phase, 0);
+    }
+
+    Timer timeLevel(int level) {
+        return new Timer(Phase.ENUMERATION, level);
+    }
+
+    void start() {
+        event.begin();
+    }
+
+    void joinComputed() {
+        joinsComputed.increment();
+    }
+
+    void candidateMerged() {
+        candidatesMerged.increment();
+    }
+
+    void candidatePruned() {
+        candidatesPruned.increment();
+    }
+
+    void setLevelSize(int level, long size) {
+        levelSizes.put(level, size);
+    }
+
+    void finish(JoinOptimizer.Enumeration enumeration, int relations, OperationTree result) {
+        this.enumeration = enumeration;
+        this.cost = result == null ? Double.NaN : result.getTotalCost();
+        event.end();
+        if (event.shouldCommit()) {
+            event.enumeration = enumeration.toString();
+            event.relations = relations;
+            event.joinsComputed = getJoinsComputed();
+            event.candidatesMerged = getCandidatesMerged();
+            event.candidatesPruned = getCandidatesPruned();
+            event.memoSize = getMemoSize();
+            event.cost = cost;
+            event.commit();
+        }
+    }
+
+    // The enumeration that actually ran, which for ADAPTIVE is the one it picked.
+    public JoinOptimizer.Enumeration getEnumeration() {
+        return enumeration;
+    }
+
+    // Cost of the chosen plan, or NaN if there is none.
+    public double getCost() {
+        return cost;
+    }
+
+    public long getNanos(Phase phase) {
+        synchronized (phaseNanos) {
+            return phaseNanos.getOrDefault(phase, 0L);
+        }
+    }
+
+    // Time spent building the plans of each size. Only DP_SIZE works level by level.
+    public SortedMap<Integer, Long> getLevelNanos() {
+        synchronized (levelNanos) {
+            return new TreeMap<>(levelNanos);
+        }
+    }
+
+    // Number of plans kept in the memo for each number of relations, as of this call.
+    public SortedMap<Integer, Long> getLevelSizes() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(levelSizes));
+    }
+
+    // Number of plans, including the base relations, that the optimization kept in its memo. The greedy enumerations
+    // don't keep one, so for them this is just the number of relations.
+    public long getMemoSize() {
+        return levelSizes.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public long getJoinsComputed() {
+        return joinsComputed.sum();
+    }
+
+    // Candidates that replaced the memo's plan for their set of relations, or were the first one for it.
+    public long getCandidatesMerged() {
+        return candidatesMerged.sum();
+    }
+
+    // Candidates discarded by branch and bound.
+    public long getCandidatesPruned() {
+        return candidatesPruned.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append(enumeration).append(": cost ").append(cost)
+                .append(", ").append(getJoinsComputed()).append(" joins computed, ")
+                .append(getCandidatesMerged()).append(" merged, ")
+                .append(getCandidatesPruned()).append(" pruned, memo size ").append(getMemoSize());
+        for (Phase phase : Phase.values()) {
+            out.append("\n  ").append(phase).append(": ").append(getNanos(phase) / 1_000_000.0).append(" ms");
+        }
+        getLevelNanos().forEach((level, nanos) -> out.append("\n    level ").append(level).append(": ")
+                .append(nanos / 1_000_000.0).append(" ms, ").append(levelSizes.getOrDefault(level, 0L)).append(" plans"));
+        return out.toString();
+    }
+}
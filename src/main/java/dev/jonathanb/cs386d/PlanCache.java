@@ -0,0 +1,112 @@
+package dev.jonathanb.cs386d;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Remembers the plans of recent queries by their fingerprint, which leaves out the literals of the value predicates,
+// so queries that only differ in those (like JOB's 10a, 10b and 10c) share a join tree. On a hit the cached tree is
+// only costed again under the new query's stats and predicates; if that cost has drifted too far from the cost the
+// plan was chosen with, the query is optimized from scratch and replaces the cached plan. Safe to share between
+// threads, as long as each thread uses its own JoinOptimizer.
+public class PlanCache {
+    // The parts of a query that its plan depends on. Join predicates are kept as sets of columns since they're
+    // symmetric, and value predicates as sorted templates since their order doesn't matter.
+    public record Fingerprint(Set<TableRef> relations, Set<Set<Column>> joins, List<String> valuePredicates) {
+        public static Fingerprint of(Set<TableRef> relations, Set<JoinPredicate> predicates, Set<ValuePredicate> valuePredicates) {
+            Set<Set<Column>> joins = new HashSet<>();
+            for (JoinPredicate predicate : predicates) {
+                joins.add(Set.of(predicate.a(), predicate.b()));
+            }
+            return new Fingerprint(Set.copyOf(relations), joins, valuePredicates.stream().map(ValuePredicate::toTemplate).sorted().toList());
+        }
+    }
+
+    private record Entry(OperationTree plan, double cost) {
+    }
+
+    private final int capacity;
+    private final double driftThreshold;
+    private final Map<Fingerprint, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder reoptimizations = new LongAdder();
+
+    // driftThreshold is the relative change in cost, in either direction, past which a cached plan is replaced.
+    public PlanCache(int capacity, double driftThreshold) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        if (driftThreshold < 0) {
+            throw new IllegalArgumentException("Drift threshold must not be negative: " + driftThreshold);
+        }
+        this.capacity = capacity;
+        this.driftThreshold = driftThreshold;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Fingerprint, Entry> eldest) {
+                return size() > PlanCache.this.capacity;
+            }
+        };
+    }
+
+    public OperationTree optimize(JoinOptimizer optimizer, Map<TableRef, RelationStats> baseRelations, Set<JoinPredicate> predicates, Set<ValuePredicate> valuePredicates) {
+        Fingerprint fingerprint = Fingerprint.of(baseRelations.keySet(), predicates, valuePredicates);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(fingerprint);
+        }
+        if (entry != null) {
+            // The optimizer applies the value predicates to the map it's given, so recosting gets its own copy in case
+            // the query has to be optimized after all.
+            OperationTree recosted = optimizer.recost(entry.plan(), new HashMap<>(baseRelations), predicates, valuePredicates);
+            if (!drifted(entry.cost(), recosted.getTotalCost())) {
+                hits.increment();
+                return recosted;
+            }
+            reoptimizations.increment();
+        } else {
+            misses.increment();
+        }
+
+        OperationTree plan = optimizer.optimize(baseRelations, predicates, valuePredicates);
+        if (plan != null) {
+            synchronized (entries) {
+                entries.put(fingerprint, new Entry(plan, plan.getTotalCost()));
+            }
+        }
+        return plan;
+    }
+
+    private boolean drifted(double cached, double current) {
+        double low = Math.min(cached, current), high = Math.max(cached, current);
+        if (high == 0) return false;
+        return low == 0 || high / low > 1 + driftThreshold;
+    }
+
+    // Lookups answered by recosting a cached plan.
+    public long getHits() {
+        return hits.sum();
+    }
+
+    // Lookups for queries without a cached plan.
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // Lookups that found a plan, but had to optimize again because its cost drifted too far.
+    public long getReoptimizations() {
+        return reoptimizations.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package dev.jonathanb.cs386d;
+
+// Open-addressing hash table from sets of relations (as bitmasks from a QueryGraph) to the cheapest plan seen for them.
+// The empty set is never a valid key, so 0 marks an empty slot.
+final class PlanTable {
+    interface PlanConsumer {
+        void accept(long mask, OperationTree tree);
+    }
+
+    private long[] keys;
+    private OperationTree[] values;
+    private int size;
+
+    PlanTable() {
+        this(16);
+    }
+
+    PlanTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) * 2;
+        keys = new long[capacity];
+        values = new OperationTree[capacity];
+    }
+
+    private static int hash(long mask) {
+        long h = mask * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot(long mask) {
+        int bitmask = keys.length - 1;
+        int slot = hash(mask) & bitmask;
+        while (keys[slot] != 0 && keys[slot] != mask) {
+            slot = (slot + 1) & bitmask;
+        }
+        return slot;
+    }
+
+    public OperationTree get(long mask) {
+        return values[slot(mask)];
+    }
+
+    public boolean contains(long mask) {
+        return keys[slot(mask)] != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void put(long mask, OperationTree tree) {
+        if (mask == 0) throw new IllegalArgumentException("Empty relation set");
+        int slot = slot(mask);
+        if (keys[slot] == 0) {
+            keys[slot] = mask;
+            size++;
+        }
+        values[slot] = tree;
+        if (size * 2 > keys.length) grow();
+    }
+
+    // Stores the tree unless the existing plan for the same set is preferred. Returns whether it was stored.
+    public boolean merge(long mask, OperationTree tree) {
+        if (mask == 0) throw new IllegalArgumentException("Empty relation set");
+        int slot = slot(mask);
+        if (keys[slot] != 0 && preferred(values[slot], tree) == values[slot]) {
+            return false;
+        }
+        if (keys[slot] == 0) {
+            keys[slot] = mask;
+            size++;
+        }
+        values[slot] = tree;
+        if (size * 2 > keys.length) grow();
+        return true;
+    }
+
+    // Picks the cheaper plan. Ties are broken by the join structure so that the result doesn't depend on the order
+    // candidates were generated in, which matters once they come from several threads.
+    public static OperationTree preferred(OperationTree a, OperationTree b) {
+        int comparison = Double.compare(a.getTotalCost(), b.getTotalCost());
+        if (comparison == 0) comparison = compareStructure(a, b);
+        return comparison <= 0 ? a : b;
+    }
+
+    private static int compareStructure(OperationTree a, OperationTree b) {
+        if (a instanceof OperationTree.TableScan scanA && b instanceof OperationTree.TableScan scanB) {
+            return scanA.getTable().toString().compareTo(scanB.getTable().toString());
+        }
+        if (a instanceof OperationTree.Join joinA && b instanceof OperationTree.Join joinB) {
+            int comparison = joinA.getLeftTable().toString().compareTo(joinB.getLeftTable().toString());
+            if (comparison == 0) comparison = joinA.getRightTable().toString().compareTo(joinB.getRightTable().toString());
+            if (comparison == 0) comparison = compareStructure(joinA.getLeftTree(), joinB.getLeftTree());
+            if (comparison == 0) comparison = compareStructure(joinA.getRightTree(), joinB.getRightTree());
+            return comparison;
+        }
+        return a instanceof OperationTree.TableScan ? -1 : 1;
+    }
+
+    public void forEach(PlanConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        OperationTree[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new OperationTree[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
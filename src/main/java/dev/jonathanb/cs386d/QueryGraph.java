@@ -0,0 +1,160 @@
+package dev.jonathanb.cs386d;
+
+import java.util.*;
+
+// Numbers the relations of a query densely so that sets of relations can be handled as bitmasks.
+// Ids are assigned in breadth-first order (starting from the alphabetically first relation of each component),
+// which the csg-cmp enumeration relies on to see every subplan before it is used.
+// Bitmasks are only available for up to 64 relations; larger queries can only use the adjacency lists.
+final class QueryGraph {
+    private final List<TableRef> relations = new ArrayList<>();
+    private final Map<TableRef, Integer> ids = new HashMap<>();
+    private final int[][] adjacency;
+    private final long[] neighbors;
+    // The predicates between each pair of relations, indexed by a * size + b; null where there are none.
+    private final List<Set<JoinPredicate>> predicates;
+    private int numEdges;
+
+    QueryGraph(Collection<TableRef> baseRelations, Collection<JoinPredicate> joinPredicates) {
+        Map<TableRef, Set<TableRef>> adjacent = new HashMap<>();
+        for (JoinPredicate predicate : joinPredicates) {
+            TableRef a = predicate.a().table(), b = predicate.b().table();
+            if (a.equals(b) || !baseRelations.contains(a) || !baseRelations.contains(b)) continue;
+            adjacent.computeIfAbsent(a, x -> new HashSet<>()).add(b);
+            adjacent.computeIfAbsent(b, x -> new HashSet<>()).add(a);
+        }
+
+        List<TableRef> sorted = baseRelations.stream().sorted(Comparator.comparing(TableRef::toString)).toList();
+        for (TableRef start : sorted) {
+            Deque<TableRef> queue = new ArrayDeque<>();
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                TableRef next = queue.poll();
+                if (ids.containsKey(next)) continue;
+                ids.put(next, relations.size());
+                relations.add(next);
+                adjacent.getOrDefault(next, Set.of()).stream()
+                        .filter(x -> !ids.containsKey(x))
+                        .sorted(Comparator.comparing(TableRef::toString))
+                        .forEach(queue::add);
+            }
+        }
+
+        int size = relations.size();
+        predicates = new ArrayList<>(Collections.nCopies(size * size, null));
+        for (JoinPredicate predicate : joinPredicates) {
+            Integer a = ids.get(predicate.a().table()), b = ids.get(predicate.b().table());
+            if (a == null || b == null || a.equals(b)) continue;
+            Set<JoinPredicate> edge = predicates.get(a * size + b);
+            if (edge == null) {
+                // Keep the query's own predicates ahead of implied ones.
+                edge = new LinkedHashSet<>();
+                predicates.set(a * size + b, edge);
+                predicates.set(b * size + a, edge);
+                numEdges++;
+            }
+            edge.add(predicate);
+        }
+
+        adjacency = new int[size][];
+        for (int a = 0; a < size; a++) {
+            int[] row = new int[size];
+            int count = 0;
+            for (int b = 0; b < size; b++) {
+                if (predicates.get(a * size + b) != null) row[count++] = b;
+            }
+            adjacency[a] = Arrays.copyOf(row, count);
+        }
+
+        if (size <= Long.SIZE) {
+            neighbors = new long[size];
+            for (int a = 0; a < size; a++) {
+                for (int b : adjacency[a]) {
+                    neighbors[a] |= 1L << b;
+                }
+            }
+        } else {
+            neighbors = null;
+        }
+    }
+
+    public int size() {
+        return relations.size();
+    }
+
+    public TableRef relation(int id) {
+        return relations.get(id);
+    }
+
+    public int id(TableRef relation) {
+        Integer id = ids.get(relation);
+        if (id == null) {
+            throw new IllegalArgumentException("Unknown relation " + relation);
+        }
+        return id;
+    }
+
+    // Ids of the relations sharing a predicate with this one, in increasing order.
+    public int[] adjacent(int id) {
+        return adjacency[id];
+    }
+
+    public boolean isConnected() {
+        if (relations.isEmpty()) return true;
+        boolean[] seen = new boolean[relations.size()];
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        seen[0] = true;
+        int count = 1;
+        while (!queue.isEmpty()) {
+            for (int next : adjacency[queue.poll()]) {
+                if (!seen[next]) {
+                    seen[next] = true;
+                    count++;
+                    queue.add(next);
+                }
+            }
+        }
+        return count == relations.size();
+    }
+
+    // A connected query graph is a tree exactly when it has one edge fewer than it has relations.
+    public boolean isAcyclic() {
+        return isConnected() && numEdges == relations.size() - 1;
+    }
+
+    public boolean supportsBitmasks() {
+        return neighbors != null;
+    }
+
+    public long allMask() {
+        checkBitmasks();
+        return relations.size() == Long.SIZE ? -1L : (1L << relations.size()) - 1;
+    }
+
+    public long neighbors(int id) {
+        checkBitmasks();
+        return neighbors[id];
+    }
+
+    private void checkBitmasks() {
+        if (neighbors == null) {
+            throw new IllegalStateException("Bitmask enumeration supports at most " + Long.SIZE + " relations, not " + relations.size());
+        }
+    }
+
+    // All relations adjacent to any relation in the set, excluding the set itself.
+    public long neighborhood(long mask) {
+        checkBitmasks();
+        long out = 0;
+        for (long rest = mask; rest != 0; rest &= rest - 1) {
+            out |= neighbors[Long.numberOfTrailingZeros(rest)];
+        }
+        return out & ~mask;
+    }
+
+    // Returns null if there is no predicate directly between the two relations.
+    public Set<JoinPredicate> predicates(int a, int b) {
+        return predicates.get(a * relations.size() + b);
+    }
+}
@@ -1,28 +1,239 @@
 package dev.jonathanb.cs386d;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Selections and joins don't copy the column map. Instead they return a view over their input that works out each
+// column's stats when it's looked up, so a candidate plan only costs as much as the columns that are actually read.
+// Once a chain of views gets too deep, it is copied back into a flat map to keep lookups fast.
+// rowWidth is the average width of a row in bytes, or 0 if it's unknown.
+public record RelationStats(double numRows, Map<Column, ColumnStats> columnStats, double rowWidth) {
+    private static final int MAX_VIEW_DEPTH = 8;
+
+    public RelationStats(double numRows, Map<Column, ColumnStats> columnStats) {
+        this(numRows, columnStats, 0);
+    }
 
-public record RelationStats(double numRows, Map<Column, ColumnStats> columnStats) {
     public RelationStats applySelect(ColumnSelectivity selectivity, Collection<Column> columns) {
         double count = numRows() * selectivity.selectivity();
-        Map<Column, ColumnStats> updatedColumns = new HashMap<>();
-        for (Map.Entry<Column, ColumnStats> entry : columnStats().entrySet()) {
-            if (columns.contains(entry.getKey())) {
-                updatedColumns.put(entry.getKey(), selectivity.newStats());
-            } else if (entry.getValue().nDistinct() > count) {
+        return new RelationStats(count, flattenIfDeep(new Selection(columnStats, selectivity, columns, count)), rowWidth);
+    }
+
+    // Stats for the cross product of two relations, which must not share any columns. Its rows are as wide as both
+    // inputs' put together, since the executor keeps every column.
+    public static RelationStats crossProduct(RelationStats left, RelationStats right) {
+        return new RelationStats(left.numRows() * right.numRows(), flattenIfDeep(new Union(left.columnStats(), right.columnStats())),
+                left.rowWidth() + right.rowWidth());
+    }
+
+    // The same relation with only the given columns, leaving out any it doesn't have.
+    public RelationStats retainColumns(Set<Column> columns) {
+        return new RelationStats(numRows, flattenIfDeep(new Filter(columnStats, columns)), rowWidth);
+    }
+
+    private static Map<Column, ColumnStats> flattenIfDeep(View view) {
+        return view.depth > MAX_VIEW_DEPTH ? new HashMap<>(view) : view;
+    }
+
+    private static int depth(Map<Column, ColumnStats> map) {
+        return map instanceof View view ? view.depth : 0;
+    }
+
+    private abstract static class View extends AbstractMap<Column, ColumnStats> {
+        final int depth;
+
+        View(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    private static final class Selection extends View {
+        private final Map<Column, ColumnStats> parent;
+        private final ColumnSelectivity selectivity;
+        private final Collection<Column> columns;
+        private final double count;
+        // Stats rescaled for this selection, filled in as they're looked up. Plans are shared between threads, and two
+        // of them creating the map at once only means one loses what it cached.
+        private volatile Map<Column, ColumnStats> rescaled;
+
+        Selection(Map<Column, ColumnStats> parent, ColumnSelectivity selectivity, Collection<Column> columns, double count) {
+            super(depth(parent) + 1);
+            this.parent = parent;
+            this.selectivity = selectivity;
+            this.columns = columns;
+            this.count = count;
+        }
+
+        private ColumnStats select(Column column, ColumnStats stats) {
+            if (columns.contains(column)) {
+                return selectivity.newStats();
+            } else if (stats.nDistinct() > count) {
                 // Common for ID fields; these are generally unique and so the number of unique values will also decrease proportionally.
-                ColumnStats decreasedStats = new ColumnStats(entry.getValue().fractionNull(),
-                        Math.round(entry.getValue().nDistinct() * selectivity.selectivity()),
-                        entry.getValue().mostCommon(),
-                        entry.getValue().histogram()
-                );
-                updatedColumns.put(entry.getKey(), decreasedStats);
-            } else {
-                updatedColumns.put(entry.getKey(), entry.getValue());
+                Map<Column, ColumnStats> rescaled = this.rescaled;
+                if (rescaled == null) {
+                    rescaled = new ConcurrentHashMap<>(4);
+                    this.rescaled = rescaled;
+                }
+                return rescaled.computeIfAbsent(column, x -> new ColumnStats(stats.fractionNull(),
+                        Math.round(stats.nDistinct() * selectivity.selectivity()),
+                        stats.mostCommon(),
+                        stats.histogram()
+                ));
             }
+            return stats;
+        }
+
+        @Override
+        public ColumnStats get(Object key) {
+            ColumnStats stats = parent.get(key);
+            return stats == null ? null : select((Column) key, stats);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return parent.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return parent.size();
+        }
+
+        @Override
+        public Set<Entry<Column, ColumnStats>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<Column, ColumnStats>> iterator() {
+                    Iterator<Entry<Column, ColumnStats>> entries = parent.entrySet().iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Entry<Column, ColumnStats> next() {
+                            Entry<Column, ColumnStats> entry = entries.next();
+                            return new SimpleImmutableEntry<>(entry.getKey(), select(entry.getKey(), entry.getValue()));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return parent.size();
+                }
+            };
+        }
+    }
+
+    private static final class Union extends View {
+        private final Map<Column, ColumnStats> left, right;
+
+        Union(Map<Column, ColumnStats> left, Map<Column, ColumnStats> right) {
+            super(Math.max(depth(left), depth(right)) + 1);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public ColumnStats get(Object key) {
+            ColumnStats stats = left.get(key);
+            return stats != null ? stats : right.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return left.containsKey(key) || right.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return left.size() + right.size();
+        }
+
+        @Override
+        public Set<Entry<Column, ColumnStats>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<Column, ColumnStats>> iterator() {
+                    Iterator<Entry<Column, ColumnStats>> first = left.entrySet().iterator(), second = right.entrySet().iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return first.hasNext() || second.hasNext();
+                        }
+
+                        @Override
+                        public Entry<Column, ColumnStats> next() {
+                            return first.hasNext() ? first.next() : second.next();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return left.size() + right.size();
+                }
+            };
+        }
+    }
+
+    private static final class Filter extends View {
+        private final Map<Column, ColumnStats> parent;
+        // The kept columns that the parent has.
+        private final Set<Column> columns;
+
+        Filter(Map<Column, ColumnStats> parent, Set<Column> columns) {
+            super(depth(parent) + 1);
+            this.parent = parent;
+            Set<Column> present = new HashSet<>();
+            for (Column column : columns) {
+                if (parent.containsKey(column)) present.add(column);
+            }
+            this.columns = present;
+        }
+
+        @Override
+        public ColumnStats get(Object key) {
+            return columns.contains(key) ? parent.get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return columns.contains(key);
+        }
+
+        @Override
+        public int size() {
+            return columns.size();
+        }
+
+        @Override
+        public Set<Entry<Column, ColumnStats>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<Column, ColumnStats>> iterator() {
+                    Iterator<Column> keys = columns.iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+
+                        @Override
+                        public Entry<Column, ColumnStats> next() {
+                            Column column = keys.next();
+                            return new SimpleImmutableEntry<>(column, parent.get(column));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return columns.size();
+                }
+            };
         }
-        return new RelationStats(count, updatedColumns);
     }
 }
@@ -0,0 +1,81 @@
+package dev.jonathanb.cs386d;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+
+// Optimizes generated queries of growing size with each enumeration and prints the optimization time, memo size and
+// peak heap usage as CSV. Once an enumeration's time for a shape is expected to exceed the time budget at the next
+// size (extrapolating exponentially from the last two sizes), the rest of that series is skipped, so the last row of
+// each series is roughly where it stops being usable.
+//
+// Usage: ScalingRunner [max relations] [budget in ms] [skew] [seed]
+public class ScalingRunner {
+    private static final int[] SIZES = {5, 10, 15, 20, 25, 30, 40, 50, 60, 70, 80, 90, 100};
+
+    public static void main(String[] args) {
+        int maxRelations = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        long budgetMillis = args.length > 1 ? Long.parseLong(args[1]) : 10_000;
+        WorkloadGenerator generator = new WorkloadGenerator(args.length > 3 ? Long.parseLong(args[3]) : 386);
+        if (args.length > 2) generator.setSkew(Double.parseDouble(args[2]));
+
+        // Warm up the JIT so that the first rows aren't dominated by interpretation.
+        WorkloadGenerator.Workload warmup = generator.generate(WorkloadGenerator.Shape.CHAIN, 10);
+        for (JoinOptimizer.Enumeration enumeration : JoinOptimizer.Enumeration.values()) {
+            new JoinOptimizer(enumeration).optimize(new HashMap<>(warmup.stats()), warmup.query().predicates(), warmup.query().valuePredicates());
+        }
+
+        System.out.println("shape,relations,enumeration,millis,memo_size,peak_heap_mb,cost");
+        for (WorkloadGenerator.Shape shape : WorkloadGenerator.Shape.values()) {
+            // The last two (size, millis) measurements of each enumeration.
+            Map<JoinOptimizer.Enumeration, long[]> history = new EnumMap<>(JoinOptimizer.Enumeration.class);
+            for (int size : SIZES) {
+                if (size > maxRelations) break;
+                WorkloadGenerator.Workload workload = generator.generate(shape, size);
+                for (JoinOptimizer.Enumeration enumeration : JoinOptimizer.Enumeration.values()) {
+                    if (!supports(enumeration, shape, size)) continue;
+                    long[] last = history.get(enumeration);
+                    if (last != null && predictMillis(last, size) > budgetMillis) continue;
+                    long millis = run(shape, size, enumeration, workload);
+                    history.put(enumeration, last == null ? new long[]{size, millis, size, millis} : new long[]{last[2], last[3], size, millis});
+                }
+            }
+        }
+    }
+
+    private static double predictMillis(long[] last, int size) {
+        double before = Math.max(1, last[1]), after = Math.max(1, last[3]);
+        if (last[0] == last[2]) return after;
+        double growth = Math.max(1, after / before);
+        return after * Math.pow(growth, (double) (size - last[2]) / (last[2] - last[0]));
+    }
+
+    private static boolean supports(JoinOptimizer.Enumeration enumeration, WorkloadGenerator.Shape shape, int size) {
+        return switch (enumeration) {
+            // Sets of relations are bitmasks.
+            case DP_SIZE, DP_CCP -> size <= Long.SIZE;
+            case IKKBZ, GOO, ADAPTIVE -> true;
+        };
+    }
+
+    private static long run(WorkloadGenerator.Shape shape, int size, JoinOptimizer.Enumeration enumeration, WorkloadGenerator.Workload workload) {
+        BenchmarkQuery query = workload.query();
+        JoinOptimizer optimizer = new JoinOptimizer(enumeration);
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .toList();
+        System.gc();
+        pools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        long start = System.nanoTime();
+        // The optimizer applies the value predicates to the map it's given, so each run needs its own copy.
+        OperationTree tree = optimizer.optimize(new HashMap<>(workload.stats()), query.predicates(), query.valuePredicates());
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        long peak = pools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        System.out.println(shape + "," + size + "," + enumeration + "," + millis + "," + optimizer.getMetrics().getMemoSize() + ","
+                + (peak >> 20) + "," + tree.getTotalCost());
+        return millis;
+    }
+}
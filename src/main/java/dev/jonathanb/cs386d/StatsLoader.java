@@ -0,0 +1,303 @@
+package dev.jonathanb.cs386d;
+
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TypeInfo;
+import org.postgresql.jdbc.TypeInfoCache;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Fetches the statistics for every relation of a query with one batched query per catalog view, rather than a few
+// queries per relation, and only for the columns the query references. The catalog queries run concurrently on a
+// small pool of connections, which are opened the first time they're needed and reused after that.
+public class StatsLoader implements AutoCloseable {
+    public interface SqlAction<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    // A pg_stats row before it's combined with the table's row count.
+    private record FetchedColumn(double nullFrac, double nDistinct, Map<HistogramValue, Double> mostCommon, List<HistogramValue> bounds) {
+        ColumnStats toStats(double numRows) {
+            long nDistinct;
+            if (this.nDistinct < 0) {
+                nDistinct = Math.round(-1 * numRows * this.nDistinct);
+            } else {
+                nDistinct = Math.round(this.nDistinct);
+            }
+            long nDistinctInHistogram = nDistinct - mostCommon.size();
+            double fractionInHistogram = 1 - nullFrac - mostCommon.values().stream().reduce(0.0, Double::sum);
+            return new ColumnStats(nullFrac, nDistinct, mostCommon, HistogramRange.makeRange(bounds, nDistinctInHistogram, fractionInHistogram));
+        }
+    }
+
+    // A pg_class row, along with the width of the table's rows summed over all of its columns in pg_stats.
+    private record TableCount(double numRows, double rowWidth) {
+    }
+
+    // Statistics for a base table, before they're bound to the relations that use it.
+    private record TableStats(double numRows, Map<String, ColumnStats> columns, double rowWidth) {
+        RelationStats bind(TableRef relation) {
+            Map<Column, ColumnStats> bound = new HashMap<>();
+            for (Map.Entry<String, ColumnStats> entry : columns.entrySet()) {
+                bound.put(new Column(relation, entry.getKey()), entry.getValue());
+            }
+            return new RelationStats(numRows, bound, rowWidth);
+        }
+
+        static TableStats unbind(RelationStats stats) {
+            Map<String, ColumnStats> columns = new HashMap<>();
+            for (Map.Entry<Column, ColumnStats> entry : stats.columnStats().entrySet()) {
+                columns.put(entry.getKey().columnName(), entry.getValue());
+            }
+            return new TableStats(stats.numRows(), columns, stats.rowWidth());
+        }
+    }
+
+    private final String url;
+    private final int poolSize;
+    private final StatsSnapshotStore snapshots;
+    private final ExecutorService executor;
+    private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+    private final List<Connection> connections = new ArrayList<>();
+
+    // snapshots may be null to always go to the database.
+    public StatsLoader(String url, int poolSize, StatsSnapshotStore snapshots) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.url = url;
+        this.poolSize = poolSize;
+        this.snapshots = snapshots;
+        this.executor = Executors.newFixedThreadPool(poolSize, task -> {
+            Thread thread = new Thread(task, "stats-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Map<TableRef, RelationStats> load(BenchmarkQuery query) throws SQLException, IOException {
+        return load(query.relations(), query.referencedColumns());
+    }
+
+    public Map<TableRef, RelationStats> load(Set<TableRef> relations, Set<Column> columns) throws SQLException, IOException {
+        Map<Table, Set<String>> needed = new HashMap<>();
+        addNeeded(needed, relations, columns);
+        return bind(loadTables(needed), relations);
+    }
+
+    // Loads the stats of several queries at once, so that the tables they share are only fetched once.
+    public List<Map<TableRef, RelationStats>> loadAll(List<BenchmarkQuery> queries) throws SQLException, IOException {
+        Map<Table, Set<String>> needed = new HashMap<>();
+        for (BenchmarkQuery query : queries) {
+            addNeeded(needed, query.relations(), query.referencedColumns());
+        }
+        Map<Table, TableStats> tables = loadTables(needed);
+        List<Map<TableRef, RelationStats>> out = new ArrayList<>();
+        for (BenchmarkQuery query : queries) {
+            out.add(bind(tables, query.relations()));
+        }
+        return out;
+    }
+
+    // Aliases of the same table share statistics, so everything is fetched by base table and column name.
+    private static void addNeeded(Map<Table, Set<String>> needed, Set<TableRef> relations, Set<Column> columns) {
+        for (TableRef relation : relations) {
+            needed.computeIfAbsent(relation.baseTable(), x -> new HashSet<>());
+        }
+        for (Column column : columns) {
+            if (relations.contains(column.table())) {
+                needed.get(column.table().baseTable()).add(column.columnName());
+            }
+        }
+    }
+
+    private static Map<TableRef, RelationStats> bind(Map<Table, TableStats> tables, Set<TableRef> relations) {
+        Map<TableRef, RelationStats> out = new HashMap<>();
+        for (TableRef relation : relations) {
+            out.put(relation, tables.get(relation.baseTable()).bind(relation));
+        }
+        return out;
+    }
+
+    private Map<Table, TableStats> loadTables(Map<Table, Set<String>> needed) throws SQLException, IOException {
+        Map<Table, StatsSnapshotStore.Freshness> freshness = snapshots == null ? Map.of()
+                : withConnection(conn -> StatsSnapshotStore.probe(conn, needed.keySet()));
+        Map<Table, TableStats> tables = new HashMap<>();
+        Map<Table, Set<String>> missing = new HashMap<>();
+        for (Map.Entry<Table, Set<String>> entry : needed.entrySet()) {
+            Table table = entry.getKey();
+            Set<String> missingColumns = new HashSet<>(entry.getValue());
+            if (freshness.containsKey(table)) {
+                RelationStats snapshot = snapshots.load(new TableRef(table.tableName(), table), freshness.get(table));
+                if (snapshot != null) {
+                    TableStats cached = TableStats.unbind(snapshot);
+                    tables.put(table, cached);
+                    missingColumns.removeAll(cached.columns().keySet());
+                    if (missingColumns.isEmpty()) continue;
+                }
+            }
+            missing.put(table, missingColumns);
+        }
+
+        if (!missing.isEmpty()) {
+            Future<Map<Table, TableCount>> counts = executor.submit(() -> withConnection(conn -> fetchCounts(conn, missing.keySet())));
+            Future<Map<Table, Map<String, FetchedColumn>>> fetched = executor.submit(() -> withConnection(conn -> fetchColumns(conn, missing)));
+            Map<Table, TableCount> countResults = await(counts);
+            Map<Table, Map<String, FetchedColumn>> columnResults = await(fetched);
+
+            for (Table table : missing.keySet()) {
+                // A fresh snapshot that's only missing some columns keeps its row count and width.
+                TableStats cached = tables.get(table);
+                TableCount count = cached != null ? new TableCount(cached.numRows(), cached.rowWidth()) : countResults.get(table);
+                if (count == null) {
+                    throw new IllegalArgumentException("Missing count for table " + table);
+                }
+                Map<String, ColumnStats> merged = cached == null ? new HashMap<>() : new HashMap<>(cached.columns());
+                for (Map.Entry<String, FetchedColumn> entry : columnResults.getOrDefault(table, Map.of()).entrySet()) {
+                    merged.put(entry.getKey(), entry.getValue().toStats(count.numRows()));
+                }
+                TableStats stats = new TableStats(count.numRows(), merged, count.rowWidth());
+                tables.put(table, stats);
+                if (freshness.containsKey(table)) {
+                    snapshots.save(table, freshness.get(table), stats.bind(new TableRef(table.tableName(), table)));
+                }
+            }
+        }
+        return tables;
+    }
+
+    private static Map<Table, TableCount> fetchCounts(Connection conn, Collection<Table> tables) throws SQLException {
+        List<Table> list = new ArrayList<>(tables);
+        // Tables that were never analyzed have no pg_stats rows, which leaves their width unknown (0).
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT pg_namespace.nspname, pg_class.relname, pg_class.reltuples, (SELECT coalesce(sum(pg_stats.avg_width), 0) FROM pg_stats WHERE pg_stats.schemaname = pg_namespace.nspname AND pg_stats.tablename = pg_class.relname) AS width FROM pg_class, pg_namespace WHERE pg_class.relnamespace = pg_namespace.oid AND (pg_namespace.nspname, pg_class.relname) IN (SELECT * FROM unnest(?::text[], ?::text[]))")) {
+            stmt.setArray(1, conn.createArrayOf("text", list.stream().map(Table::schemaName).toArray()));
+            stmt.setArray(2, conn.createArrayOf("text", list.stream().map(Table::tableName).toArray()));
+            Map<Table, TableCount> out = new HashMap<>();
+            try (ResultSet results = stmt.executeQuery()) {
+                while (results.next()) {
+                    out.put(new Table(results.getString("nspname"), results.getString("relname")),
+                            new TableCount(results.getLong("reltuples"), results.getDouble("width")));
+                }
+            }
+            return out;
+        }
+    }
+
+    private static Map<Table, Map<String, FetchedColumn>> fetchColumns(Connection conn, Map<Table, Set<String>> columns) throws SQLException {
+        List<String> schemas = new ArrayList<>(), tables = new ArrayList<>(), names = new ArrayList<>();
+        for (Map.Entry<Table, Set<String>> entry : columns.entrySet()) {
+            for (String name : entry.getValue()) {
+                schemas.add(entry.getKey().schemaName());
+                tables.add(entry.getKey().tableName());
+                names.add(name);
+            }
+        }
+        Map<Table, Map<String, FetchedColumn>> out = new HashMap<>();
+        if (names.isEmpty()) return out;
+
+        // The element type of the anyarray columns comes from pg_attribute, joined in here to save a round trip.
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT pg_stats.*, pg_attribute.atttypid FROM pg_stats, pg_attribute, pg_class, pg_namespace WHERE pg_attribute.attrelid = pg_class.oid AND pg_attribute.attname = pg_stats.attname AND pg_class.relname = pg_stats.tablename AND pg_class.relnamespace = pg_namespace.oid AND pg_namespace.nspname = pg_stats.schemaname AND (pg_stats.schemaname, pg_stats.tablename, pg_stats.attname) IN (SELECT * FROM unnest(?::text[], ?::text[], ?::text[]))")) {
+            stmt.setArray(1, conn.createArrayOf("text", schemas.toArray()));
+            stmt.setArray(2, conn.createArrayOf("text", tables.toArray()));
+            stmt.setArray(3, conn.createArrayOf("text", names.toArray()));
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    Table table = new Table(resultSet.getString("schemaname"), resultSet.getString("tablename"));
+                    int type = resultSet.getInt("atttypid");
+
+                    Map<HistogramValue, Double> mostCommon = new HashMap<>();
+                    if (resultSet.getArray("most_common_vals") != null) {
+                        Object[] mostCommonVals = getGenericArray(conn, resultSet.getArray("most_common_vals"), type);
+                        Number[] mostCommonFreqs = (Number[]) resultSet.getArray("most_common_freqs").getArray();
+                        for (int i = 0; i < mostCommonVals.length; i++) {
+                            mostCommon.put(HistogramValue.of(mostCommonVals[i]), mostCommonFreqs[i].doubleValue());
+                        }
+                    }
+                    List<HistogramValue> bounds = new ArrayList<>();
+                    if (resultSet.getArray("histogram_bounds") != null) {
+                        Object[] histogramResults = getGenericArray(conn, resultSet.getArray("histogram_bounds"), type);
+                        bounds = Arrays.stream(histogramResults).map(HistogramValue::of).toList();
+                    }
+
+                    out.computeIfAbsent(table, x -> new HashMap<>()).put(resultSet.getString("attname"),
+                            new FetchedColumn(resultSet.getDouble("null_frac"), resultSet.getDouble("n_distinct"), mostCommon, bounds));
+                }
+            }
+        }
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object[] getGenericArray(Connection conn, Array array, Integer elementType) throws SQLException {
+        // This is very hacky but the Postgres driver doesn't support generic arrays currently.
+        try {
+            TypeInfo typeInfo = ((BaseConnection) conn).getTypeInfo();
+
+            Field arrayOidToDelimiter = TypeInfoCache.class.getDeclaredField("arrayOidToDelimiter");
+            arrayOidToDelimiter.setAccessible(true);
+            ((Map<Integer, Character>) arrayOidToDelimiter.get(typeInfo)).put(2277, ',');
+
+            Field pgArrayToPgType = TypeInfoCache.class.getDeclaredField("pgArrayToPgType");
+            pgArrayToPgType.setAccessible(true);
+            ((Map<Integer, Integer>) pgArrayToPgType.get(typeInfo)).put(2277, elementType);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+        return (Object[]) array.getArray();
+    }
+
+    // Runs the action on one of the loader's connections, waiting for one to become idle if they're all in use.
+    public <T> T withConnection(SqlAction<T> action) throws SQLException {
+        Connection conn = acquire();
+        try {
+            return action.run(conn);
+        } finally {
+            idle.add(conn);
+        }
+    }
+
+    private Connection acquire() throws SQLException {
+        Connection conn = idle.poll();
+        if (conn != null) return conn;
+        synchronized (connections) {
+            if (connections.size() < poolSize) {
+                conn = DriverManager.getConnection(url);
+                connections.add(conn);
+                return conn;
+            }
+        }
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while fetching stats", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sql) throw sql;
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        executor.shutdownNow();
+        synchronized (connections) {
+            for (Connection conn : connections) {
+                conn.close();
+            }
+            connections.clear();
+        }
+    }
+}
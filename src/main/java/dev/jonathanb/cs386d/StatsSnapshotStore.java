@@ -0,0 +1,209 @@
+package dev.jonathanb.cs386d;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+
+// Keeps a binary copy of each table's statistics on disk so they don't have to be fetched from Postgres on every run.
+// Postgres only changes these statistics when the table is analyzed, so each snapshot records when that last happened
+// (along with the table's size in pages) and is ignored once the database reports something different.
+public class StatsSnapshotStore {
+    private static final int MAGIC = 0x52535453; // "RSTS"
+    private static final int VERSION = 2;
+
+    private static final byte TYPE_STRING = 0, TYPE_INTEGER = 1, TYPE_LONG = 2, TYPE_SHORT = 3, TYPE_DOUBLE = 4,
+            TYPE_FLOAT = 5, TYPE_BIG_DECIMAL = 6, TYPE_BIG_INTEGER = 7;
+
+    public record Freshness(long lastAnalyzed, long relPages) {
+    }
+
+    private final Path directory;
+
+    public StatsSnapshotStore(Path directory) {
+        this.directory = directory;
+    }
+
+    // Returns the store configured with the stats-cache.path system property, or null if there isn't one.
+    public static StatsSnapshotStore fromSystemProperties() {
+        String path = System.getProperty("stats-cache.path");
+        return path == null ? null : new StatsSnapshotStore(Path.of(path));
+    }
+
+    // Looks up the freshness of several tables at once. Tables that Postgres doesn't know about are left out.
+    public static Map<Table, Freshness> probe(Connection conn, Collection<Table> tables) throws SQLException {
+        List<Table> list = new ArrayList<>(tables);
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT s.schemaname, s.relname, GREATEST(s.last_analyze, s.last_autoanalyze) AS analyzed, c.relpages FROM pg_stat_user_tables s, pg_class c WHERE c.oid = s.relid AND (s.schemaname, s.relname) IN (SELECT * FROM unnest(?::text[], ?::text[]))")) {
+            stmt.setArray(1, conn.createArrayOf("text", list.stream().map(Table::schemaName).toArray()));
+            stmt.setArray(2, conn.createArrayOf("text", list.stream().map(Table::tableName).toArray()));
+            Map<Table, Freshness> out = new HashMap<>();
+            try (ResultSet results = stmt.executeQuery()) {
+                while (results.next()) {
+                    Timestamp analyzed = results.getTimestamp("analyzed");
+                    out.put(new Table(results.getString("schemaname"), results.getString("relname")),
+                            new Freshness(analyzed == null ? Long.MIN_VALUE : analyzed.getTime(), results.getLong("relpages")));
+                }
+            }
+            return out;
+        }
+    }
+
+    private Path pathFor(Table table) {
+        return directory.resolve(table.schemaName() + "." + table.tableName() + ".stats");
+    }
+
+    // Loads the snapshot for the relation's table, binding its columns to the relation.
+    // Returns null if there is no snapshot or it doesn't match the expected freshness; pass null to accept any snapshot.
+    public RelationStats load(TableRef relation, Freshness expected) throws IOException {
+        Path path = pathFor(relation.baseTable());
+        if (!Files.isRegularFile(path)) return null;
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        Freshness freshness = new Freshness(buffer.getLong(), buffer.getLong());
+        if (expected != null && !expected.equals(freshness)) {
+            return null;
+        }
+
+        double numRows = buffer.getDouble();
+        double rowWidth = buffer.getDouble();
+        int numColumns = buffer.getInt();
+        Map<Column, ColumnStats> columns = new HashMap<>();
+        for (int i = 0; i < numColumns; i++) {
+            Column column = new Column(relation, readString(buffer));
+            double fractionNull = buffer.getDouble();
+            long nDistinct = buffer.getLong();
+
+            int numMostCommon = buffer.getInt();
+            Map<HistogramValue, Double> mostCommon = new HashMap<>();
+            for (int j = 0; j < numMostCommon; j++) {
+                HistogramValue value = readValue(buffer);
+                mostCommon.put(value, buffer.getDouble());
+            }
+
+            int numRanges = buffer.getInt();
+            List<HistogramRange> histogram = new ArrayList<>(numRanges);
+            for (int j = 0; j < numRanges; j++) {
+                histogram.add(new HistogramRange(readValue(buffer), readValue(buffer), buffer.getDouble(), buffer.getDouble()));
+            }
+            columns.put(column, new ColumnStats(fractionNull, nDistinct, mostCommon, histogram));
+        }
+        return new RelationStats(numRows, columns, rowWidth);
+    }
+
+    public void save(Table table, Freshness freshness, RelationStats stats) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(freshness.lastAnalyzed());
+        out.writeLong(freshness.relPages());
+        out.writeDouble(stats.numRows());
+        out.writeDouble(stats.rowWidth());
+        out.writeInt(stats.columnStats().size());
+        for (Map.Entry<Column, ColumnStats> entry : stats.columnStats().entrySet()) {
+            ColumnStats column = entry.getValue();
+            writeString(out, entry.getKey().columnName());
+            out.writeDouble(column.fractionNull());
+            out.writeLong(column.nDistinct());
+            out.writeInt(column.mostCommon().size());
+            for (Map.Entry<HistogramValue, Double> value : column.mostCommon().entrySet()) {
+                writeValue(out, value.getKey());
+                out.writeDouble(value.getValue());
+            }
+            out.writeInt(column.histogram().size());
+            for (HistogramRange range : column.histogram()) {
+                writeValue(out, range.lowerBound());
+                writeValue(out, range.upperBound());
+                out.writeDouble(range.numDistinct());
+                out.writeDouble(range.fractionOfElements());
+            }
+        }
+        out.flush();
+
+        // Write to a temporary file first so that a concurrent reader never sees half a snapshot.
+        Files.createDirectories(directory);
+        Path path = pathFor(table);
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeValue(DataOutputStream out, HistogramValue value) throws IOException {
+        Object obj = value.obj();
+        if (obj instanceof String s) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, s);
+        } else if (obj instanceof Integer i) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt(i);
+        } else if (obj instanceof Long l) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong(l);
+        } else if (obj instanceof Short s) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort(s);
+        } else if (obj instanceof Double d) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(d);
+        } else if (obj instanceof Float f) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat(f);
+        } else if (obj instanceof BigDecimal d) {
+            out.writeByte(TYPE_BIG_DECIMAL);
+            writeString(out, d.toString());
+        } else if (obj instanceof BigInteger i) {
+            out.writeByte(TYPE_BIG_INTEGER);
+            writeString(out, i.toString());
+        } else {
+            throw new UnsupportedOperationException("Cannot store " + obj.getClass() + " in a snapshot");
+        }
+    }
+
+    private static HistogramValue readValue(ByteBuffer buffer) throws IOException {
+        byte type = buffer.get();
+        return HistogramValue.of(switch (type) {
+            case TYPE_STRING -> readString(buffer);
+            case TYPE_INTEGER -> buffer.getInt();
+            case TYPE_LONG -> buffer.getLong();
+            case TYPE_SHORT -> buffer.getShort();
+            case TYPE_DOUBLE -> buffer.getDouble();
+            case TYPE_FLOAT -> buffer.getFloat();
+            case TYPE_BIG_DECIMAL -> new BigDecimal(readString(buffer));
+            case TYPE_BIG_INTEGER -> new BigInteger(readString(buffer));
+            default -> throw new IOException("Unknown value type " + type);
+        });
+    }
+}
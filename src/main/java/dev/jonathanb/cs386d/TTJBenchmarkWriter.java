@@ -8,6 +8,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+// Writes a plan in the format of TTJ's benchmark: the order the tables are joined in, and the join tree rooted at the
+// first of them. That format can only describe a left-deep plan, where every table after the first is joined on its
+// own with the tables before it, so plans with a join on the build side are rejected rather than flattened into an
+// order TTJ would run differently.
 public class TTJBenchmarkWriter {
     private final BenchmarkQuery query;
     private final String queryPrefix;
@@ -25,7 +29,10 @@ public class TTJBenchmarkWriter {
     private void buildJoinOrderAndTree(OperationTree tree) {
         if (tree instanceof OperationTree.Join join) {
             buildJoinOrderAndTree(join.getLeftTree());
-            OperationTree.TableScan scanRight = (OperationTree.TableScan) join.getRightTree();
+            if (!(join.getRightTree() instanceof OperationTree.TableScan scanRight)) {
+                throw new IllegalArgumentException("TTJ can only run left-deep plans, but the plan joins " + join.getLeftTable()
+                        + " with a subplan over " + join.getRightTree().getTablesSet() + "; optimize without setBushy(true)");
+            }
             joinOrder.add(translateTable(scanRight.getTable()));
             joinTree.computeIfAbsent(translateTable(join.getLeftTable()), x -> new ArrayList<>())
                     .add(translateTable(join.getRightTable()));
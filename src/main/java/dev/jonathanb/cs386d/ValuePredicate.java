@@ -20,6 +20,9 @@ public abstract class ValuePredicate {
 
     public abstract ColumnSelectivity getSelectivity(ColumnStats stats);
 
+    // The predicate with its literals replaced by ?, so that queries differing only in literals can share a plan.
+    public abstract String toTemplate();
+
     public static class Equality extends ValuePredicate {
         private final Set<HistogramValue> values;
         private final boolean invert;
@@ -32,14 +35,19 @@ public abstract class ValuePredicate {
 
         @Override
         public ColumnSelectivity getSelectivity(ColumnStats stats) {
-            double fractionKept = 0;
+            double fractionKept = 0, fractionUnmapped = 0;
             for (HistogramValue value : values) {
                 // Assuming all values exist in the base relation.
-                fractionKept += stats.estimatedFrequencyAssumingExists(value);
+                double frequency = stats.estimatedFrequencyAssumingExists(value);
+                fractionKept += frequency;
+                if (!stats.mostCommon().containsKey(value)) fractionUnmapped += frequency;
             }
 
             if (invert) {
                 fractionKept = 1 - fractionKept - stats.fractionNull();
+                // The histogram loses the values that aren't common ones, which are too few to change its shape.
+                Histogram histogram = stats.buckets();
+                Histogram newHistogram = histogram.scaleTo((histogram.totalFraction() - fractionUnmapped) / fractionKept);
 
                 Map<HistogramValue, Double> newMostCommon = new HashMap<>();
                 for (Map.Entry<HistogramValue, Double> entry : stats.mostCommon().entrySet()) {
@@ -48,7 +56,7 @@ public abstract class ValuePredicate {
                     }
                 }
 
-                return new ColumnSelectivity(fractionKept, new ColumnStats(0, stats.nDistinct() - values.size(), newMostCommon, List.of()));
+                return new ColumnSelectivity(fractionKept, new ColumnStats(0, stats.nDistinct() - values.size(), newMostCommon, newHistogram));
             } else {
                 Map<HistogramValue, Double> newMostCommon = new HashMap<>();
                 for (HistogramValue value : values) {
@@ -73,6 +81,11 @@ public abstract class ValuePredicate {
             }
             return builder.toString();
         }
+
+        @Override
+        public String toTemplate() {
+            return getColumn().toShortString() + (invert ? " NOT IN (?)" : " IN (?)");
+        }
     }
 
     public static class Inequality extends ValuePredicate {
@@ -95,32 +108,17 @@ public abstract class ValuePredicate {
             return false;
         }
 
-        private boolean accept(HistogramRange range) {
-            if (lessThan && range.lowerBound().compareTo(threshold) < 0) {
-                return true;
-            }
-            if (greaterThan && range.upperBound().compareTo(threshold) > 0) {
-                return true;
-            }
-            if (equal && range.contains(threshold)) {
-                return true;
-            }
-            return false;
-        }
-
         @Override
         public ColumnSelectivity getSelectivity(ColumnStats stats) {
-            double fractionKept = 0;
-            double newDistinct = 0;
-
-            for (HistogramRange range : stats.histogram()) {
-                // Allow any range that partially overlaps
-                if (accept(range)) {
-                    fractionKept += range.fractionOfElements();
-                    newDistinct += range.numDistinct();
-                    // (Note if you decide to carry over the histogram ranges: the fraction of elements field needs to be changed)
-                }
-            }
+            // Values in the histogram are spread evenly within each bucket, except that the threshold itself gets its
+            // bucket's average frequency.
+            Histogram histogram = stats.buckets();
+            double below = histogram.fractionBelow(threshold), at = Math.min(histogram.fractionEqual(threshold), histogram.totalFraction() - below);
+            double histogramKept = (lessThan ? below : 0) + (equal ? at : 0) + (greaterThan ? Math.max(histogram.totalFraction() - below - at, 0) : 0);
+            double fractionKept = histogramKept;
+            double distinctBelow = histogram.distinctBelow(threshold), distinctAt = at > 0 ? 1 : 0;
+            double newDistinct = (lessThan ? distinctBelow : 0) + (equal ? distinctAt : 0)
+                    + (greaterThan ? Math.max(histogram.totalDistinct() - distinctBelow - distinctAt, 0) : 0);
 
             for (Map.Entry<HistogramValue, Double> entry : stats.mostCommon().entrySet()) {
                 if (accept(entry.getKey())) {
@@ -135,7 +133,17 @@ public abstract class ValuePredicate {
                     newMostCommon.put(entry.getKey(), entry.getValue() / fractionKept);
                 }
             }
-            return new ColumnSelectivity(fractionKept, new ColumnStats(0, Math.round(newDistinct), newMostCommon, List.of()));
+            Histogram newHistogram;
+            if (lessThan && greaterThan) {
+                newHistogram = histogram;
+            } else if (lessThan) {
+                newHistogram = histogram.clip(null, threshold);
+            } else if (greaterThan) {
+                newHistogram = histogram.clip(threshold, null);
+            } else {
+                newHistogram = histogram.clip(threshold, threshold);
+            }
+            return new ColumnSelectivity(fractionKept, new ColumnStats(0, Math.round(newDistinct), newMostCommon, newHistogram.scaleTo(histogramKept / fractionKept)));
         }
 
         @Override
@@ -150,6 +158,11 @@ public abstract class ValuePredicate {
             builder.append(threshold);
             return builder.toString();
         }
+
+        @Override
+        public String toTemplate() {
+            return getColumn().toShortString() + " " + (lessThan ? "<" : "") + (greaterThan ? ">" : "") + (equal ? "=" : "") + " ?";
+        }
     }
 
     public static class Null extends ValuePredicate {
@@ -165,33 +178,146 @@ public abstract class ValuePredicate {
             if (!invert) {
                 return new ColumnSelectivity(stats.fractionNull(), new ColumnStats(1, 0, Map.of(), List.of()));
             }
+            double fractionKept = 1 - stats.fractionNull();
             Map<HistogramValue, Double> newMostCommon = new HashMap<>();
             for (Map.Entry<HistogramValue, Double> entry : stats.mostCommon().entrySet()) {
-                newMostCommon.put(entry.getKey(), entry.getValue() / stats.fractionNull());
+                newMostCommon.put(entry.getKey(), entry.getValue() / fractionKept);
             }
-            return new ColumnSelectivity(1 - stats.fractionNull(), new ColumnStats(0, stats.nDistinct(), newMostCommon, List.of()));
+            Histogram histogram = stats.buckets();
+            return new ColumnSelectivity(fractionKept, new ColumnStats(0, stats.nDistinct(), newMostCommon, histogram.scaleTo(histogram.totalFraction() / fractionKept)));
         }
         
         @Override
         public String toString() {
             return getColumn().toShortString() + (invert ? " IS NOT NULL" : " IS NULL");
         }
+
+        @Override
+        public String toTemplate() {
+            return toString();
+        }
     }
 
     public static class Like extends ValuePredicate {
+        // Below this many histogram bounds, matching them says too little and only the heuristic is used; from there
+        // on the two are blended, until the bounds alone are trusted at FULL_SAMPLE_SIZE (as in Postgres' patternsel).
+        private static final int MIN_SAMPLE_SIZE = 10, FULL_SAMPLE_SIZE = 100;
+
+        // Matches any of the patterns; invert is only used with a single one.
         private final Set<String> patterns;
+        private final List<LikePattern> compiled;
         private final boolean invert;
 
         public Like(Column column, Set<String> patterns, boolean invert) {
             super(column);
             this.patterns = patterns;
+            this.compiled = patterns.stream().map(LikePattern::compile).toList();
             this.invert = invert;
         }
 
+        private boolean accept(HistogramValue value) {
+            for (LikePattern pattern : compiled) {
+                if (pattern.matches(value)) return true;
+            }
+            return false;
+        }
+
         @Override
         public ColumnSelectivity getSelectivity(ColumnStats stats) {
-            // TODO: don't have a good way to calculate this.
-            return new ColumnSelectivity(invert ? 0.9 : 0.1, stats);
+            // The common values are matched exactly; the rest are estimated, treating the patterns as independent.
+            double matchedCommon = 0;
+            Map<HistogramValue, Double> matching = new HashMap<>(), notMatching = new HashMap<>();
+            for (Map.Entry<HistogramValue, Double> entry : stats.mostCommon().entrySet()) {
+                if (accept(entry.getKey())) {
+                    matchedCommon += entry.getValue();
+                    matching.put(entry.getKey(), entry.getValue());
+                } else {
+                    notMatching.put(entry.getKey(), entry.getValue());
+                }
+            }
+            double missedUnmapped = 1;
+            for (LikePattern pattern : compiled) {
+                missedUnmapped *= 1 - unmappedSelectivity(pattern, stats);
+            }
+            double matchedUnmapped = 1 - missedUnmapped;
+            double fractionMatched = matchedCommon + stats.fractionUnmapped() * matchedUnmapped;
+
+            // Nulls match neither LIKE nor NOT LIKE.
+            double fractionKept = invert ? 1 - stats.fractionNull() - fractionMatched : fractionMatched;
+            Map<HistogramValue, Double> kept = invert ? notMatching : matching;
+            Map<HistogramValue, Double> newMostCommon = new HashMap<>();
+            for (Map.Entry<HistogramValue, Double> entry : kept.entrySet()) {
+                newMostCommon.put(entry.getKey(), entry.getValue() / fractionKept);
+            }
+            long newDistinct = kept.size() + Math.round(stats.nDistinctUnmapped() * (invert ? missedUnmapped : matchedUnmapped));
+
+            // A single prefix keeps just its range of the histogram; otherwise matches are assumed to be spread evenly.
+            Histogram histogram = stats.buckets();
+            double histogramKept = histogram.totalFraction() * (invert ? missedUnmapped : matchedUnmapped);
+            if (!invert && compiled.size() == 1 && compiled.get(0).isPrefixOnly()) {
+                String prefix = compiled.get(0).prefix();
+                // greaterString is null when no string is greater, which clip takes as keeping everything from the prefix up.
+                HistogramValue upper = greaterString(prefix);
+                histogram = histogram.clip(HistogramValue.of(prefix), upper);
+            }
+            return new ColumnSelectivity(fractionKept, new ColumnStats(0, newDistinct, newMostCommon, histogram.scaleTo(histogramKept / fractionKept)));
+        }
+
+        // Estimated fraction of the values outside the common values that match the pattern.
+        private static double unmappedSelectivity(LikePattern pattern, ColumnStats stats) {
+            if (pattern.isExact()) {
+                // The one value it matches is either a common value, which has already been counted, or one of the rest.
+                for (HistogramValue common : stats.mostCommon().keySet()) {
+                    if (pattern.matches(common)) return 0;
+                }
+                return stats.nDistinctUnmapped() > 0 ? 1.0 / stats.nDistinctUnmapped() : 0;
+            }
+            Histogram histogram = stats.buckets();
+            double heuristic = pattern.restSelectivity();
+            if (!pattern.prefix().isEmpty()) {
+                heuristic *= histogram.isEmpty() ? pattern.prefixSelectivity() : prefixSelectivity(pattern.prefix(), stats);
+            }
+            // The histogram bounds are a sample of the values outside the common values, apart from any that a range
+            // predicate clipped the histogram to.
+            List<HistogramValue> bounds = histogram.sampledBounds();
+            int samples = bounds.size();
+            if (pattern.isPrefixOnly() || samples < MIN_SAMPLE_SIZE) {
+                return heuristic;
+            }
+
+            int matched = 0;
+            for (HistogramValue bound : bounds) {
+                if (pattern.matches(bound)) matched++;
+            }
+            double sampled = Math.min(Math.max((double) matched / samples, 0.0001), 0.9999);
+            if (samples >= FULL_SAMPLE_SIZE) {
+                return sampled;
+            }
+            double weight = (double) samples / FULL_SAMPLE_SIZE;
+            return sampled * weight + heuristic * (1 - weight);
+        }
+
+        // Fraction of the histogram from the prefix up to the first string greater than everything starting with it.
+        private static double prefixSelectivity(String prefix, ColumnStats stats) {
+            Histogram histogram = stats.buckets();
+            HistogramValue lower = HistogramValue.of(prefix), upper = greaterString(prefix);
+            double inRange = upper == null ? histogram.totalFraction() - histogram.fractionBelow(lower) : histogram.fractionBetween(lower, upper);
+            // Even the narrowest prefix is at least as common as the values that equal it.
+            double equal = stats.nDistinctUnmapped() > 0 ? 1.0 / stats.nDistinctUnmapped() : 0;
+            return histogram.totalFraction() > 0 ? Math.max(inRange / histogram.totalFraction(), equal) : equal;
+        }
+
+        // The smallest string greater than every string starting with the prefix, or null if there isn't one.
+        private static HistogramValue greaterString(String prefix) {
+            StringBuilder builder = new StringBuilder(prefix);
+            while (!builder.isEmpty()) {
+                char last = builder.charAt(builder.length() - 1);
+                builder.setLength(builder.length() - 1);
+                if (last < Character.MAX_VALUE) {
+                    return HistogramValue.of(builder.append((char) (last + 1)).toString());
+                }
+            }
+            return null;
         }
 
         @Override
@@ -200,5 +326,10 @@ public abstract class ValuePredicate {
             if (parts.size() == 1) return parts.get(0);
             return "(" + String.join(" OR ", parts) + ")";
         }
+
+        @Override
+        public String toTemplate() {
+            return getColumn().toShortString() + (invert ? " NOT LIKE ?" : " LIKE ?");
+        }
     }
 }
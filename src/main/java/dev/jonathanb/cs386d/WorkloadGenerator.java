@@ -0,0 +1,186 @@
+package dev.jonathanb.cs386d;
+
+import java.util.*;
+
+// Generates synthetic queries of a given shape and size together with stats for their relations, for measuring how
+// the optimizer scales beyond the size of the JOB queries. The same seed always produces the same workload.
+//
+// Every join is a foreign key join: the referencing relation's fk_<alias> column points at the referenced relation's
+// id column. Keys are unique, while foreign keys follow a Zipf distribution whose exponent is the skew; the most
+// common values are the head of that distribution, and the rest of the domain goes into the histogram.
+public class WorkloadGenerator {
+    public enum Shape {
+        // r0 - r1 - ... - rn
+        CHAIN,
+        // One fact relation referencing every other relation.
+        STAR,
+        // A chain whose last relation references the first one.
+        CYCLE,
+        // Every relation referencing every later one.
+        CLIQUE,
+        // A star whose dimensions reference further relations of their own.
+        SNOWFLAKE
+    }
+
+    public record Workload(BenchmarkQuery query, Map<TableRef, RelationStats> stats) {
+    }
+
+    private static final String SCHEMA = "synthetic";
+    private static final int HISTOGRAM_BUCKETS = 100;
+
+    private final long seed;
+    private double skew = 1;
+    private int mostCommonValues = 100;
+    private double minRows = 1e3, maxRows = 1e7;
+
+    public WorkloadGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    // Zipf exponent of the foreign key distributions. 0 makes them uniform, in which case there are no common values.
+    public void setSkew(double skew) {
+        if (skew < 0) {
+            throw new IllegalArgumentException("Skew must not be negative: " + skew);
+        }
+        this.skew = skew;
+    }
+
+    // Length of each foreign key's list of most common values, like Postgres' statistics target.
+    public void setMostCommonValues(int mostCommonValues) {
+        if (mostCommonValues < 0) {
+            throw new IllegalArgumentException("Number of most common values must not be negative: " + mostCommonValues);
+        }
+        this.mostCommonValues = mostCommonValues;
+    }
+
+    // Row counts are drawn log-uniformly from this range, except for the fact relation of a star or snowflake, which
+    // always gets the maximum.
+    public void setRowRange(double minRows, double maxRows) {
+        if (minRows < 1 || maxRows < minRows) {
+            throw new IllegalArgumentException("Invalid row range: " + minRows + " to " + maxRows);
+        }
+        this.minRows = minRows;
+        this.maxRows = maxRows;
+    }
+
+    public Workload generate(Shape shape, int numRelations) {
+        if (numRelations < 2) {
+            throw new IllegalArgumentException("A join needs at least two relations: " + numRelations);
+        }
+        // Each shape and size gets its own stream, so adding a size to a run doesn't change the others. The shape goes in
+        // by ordinal, since an enum's hash code differs from one JVM run to the next.
+        Random random = new Random(Objects.hash(seed, shape.ordinal(), numRelations));
+
+        List<TableRef> relations = new ArrayList<>();
+        double[] numRows = new double[numRelations];
+        for (int i = 0; i < numRelations; i++) {
+            relations.add(new TableRef("r" + i, new Table(SCHEMA, "r" + i)));
+            numRows[i] = Math.round(minRows * Math.pow(maxRows / minRows, random.nextDouble()));
+        }
+        if (shape == Shape.STAR || shape == Shape.SNOWFLAKE) {
+            numRows[0] = maxRows;
+        }
+
+        // Pairs of (referencing, referenced) relation ids.
+        List<int[]> edges = new ArrayList<>();
+        switch (shape) {
+            case CHAIN, CYCLE -> {
+                for (int i = 0; i < numRelations - 1; i++) {
+                    edges.add(new int[]{i, i + 1});
+                }
+                if (shape == Shape.CYCLE && numRelations > 2) {
+                    edges.add(new int[]{numRelations - 1, 0});
+                }
+            }
+            case STAR -> {
+                for (int i = 1; i < numRelations; i++) {
+                    edges.add(new int[]{0, i});
+                }
+            }
+            case CLIQUE -> {
+                for (int i = 0; i < numRelations; i++) {
+                    for (int j = i + 1; j < numRelations; j++) {
+                        edges.add(new int[]{i, j});
+                    }
+                }
+            }
+            case SNOWFLAKE -> {
+                // About sqrt(n) dimensions, with the remaining relations spread evenly between them.
+                int dimensions = Math.max(1, (int) Math.round(Math.sqrt(numRelations - 1)));
+                for (int i = 1; i < numRelations; i++) {
+                    edges.add(i <= dimensions ? new int[]{0, i} : new int[]{1 + (i - dimensions - 1) % dimensions, i});
+                }
+            }
+        }
+
+        Map<TableRef, Map<Column, ColumnStats>> columns = new HashMap<>();
+        Set<JoinPredicate> predicates = new LinkedHashSet<>();
+        for (int[] edge : edges) {
+            TableRef from = relations.get(edge[0]), to = relations.get(edge[1]);
+            Column foreignKey = new Column(from, "fk_" + to.alias());
+            Column key = new Column(to, "id");
+            columns.computeIfAbsent(from, x -> new HashMap<>()).put(foreignKey, foreignKeyStats(random, numRows[edge[0]], numRows[edge[1]]));
+            columns.computeIfAbsent(to, x -> new HashMap<>()).put(key, keyStats(numRows[edge[1]]));
+            predicates.add(new JoinPredicate(foreignKey, key));
+        }
+
+        Map<TableRef, RelationStats> stats = new HashMap<>();
+        for (int i = 0; i < numRelations; i++) {
+            stats.put(relations.get(i), new RelationStats(numRows[i], columns.getOrDefault(relations.get(i), new HashMap<>())));
+        }
+        return new Workload(new BenchmarkQuery(new LinkedHashSet<>(relations), predicates, new HashSet<>()), stats);
+    }
+
+    private static ColumnStats keyStats(double numRows) {
+        long n = (long) numRows;
+        return new ColumnStats(0, n, Map.of(), HistogramRange.makeRange(bounds(0, n, (int) Math.min(HISTOGRAM_BUCKETS, n)), n, 1));
+    }
+
+    // The foreign key takes some random part of the referenced keys, and its most common values are the smallest ones.
+    private ColumnStats foreignKeyStats(Random random, double numRows, double referencedRows) {
+        long nDistinct = Math.max(1, (long) (Math.min(numRows, referencedRows) * (0.5 + random.nextDouble() / 2)));
+        int numCommon = skew == 0 ? 0 : (int) Math.min(mostCommonValues, nDistinct);
+        double[] frequencies = zipfHead(nDistinct, numCommon);
+
+        Map<HistogramValue, Double> mostCommon = new HashMap<>();
+        double common = 0;
+        for (int i = 0; i < numCommon; i++) {
+            mostCommon.put(HistogramValue.of((long) i), frequencies[i]);
+            common += frequencies[i];
+        }
+        if (numCommon == nDistinct) {
+            return new ColumnStats(0, nDistinct, mostCommon, List.of());
+        }
+        int buckets = (int) Math.min(HISTOGRAM_BUCKETS, nDistinct - numCommon);
+        return new ColumnStats(0, nDistinct, mostCommon,
+                HistogramRange.makeRange(bounds(numCommon, nDistinct, buckets), nDistinct - numCommon, 1 - common));
+    }
+
+    // Frequencies of the first values of a Zipf distribution over n values.
+    private double[] zipfHead(long n, int count) {
+        double[] weights = new double[count];
+        for (int i = 0; i < count; i++) {
+            weights[i] = Math.pow(i + 1, -skew);
+        }
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        // The tail is too long to sum directly; its integral is close enough.
+        double from = count + 0.5, to = n + 0.5;
+        total += skew == 1 ? Math.log(to / from) : (Math.pow(to, 1 - skew) - Math.pow(from, 1 - skew)) / (1 - skew);
+        for (int i = 0; i < count; i++) {
+            weights[i] /= total;
+        }
+        return weights;
+    }
+
+    // Evenly spaced histogram bounds covering [from, to).
+    private static List<HistogramValue> bounds(long from, long to, int buckets) {
+        List<HistogramValue> out = new ArrayList<>();
+        for (int i = 0; i <= buckets; i++) {
+            out.add(HistogramValue.of(from + (to - 1 - from) * i / buckets));
+        }
+        return out;
+    }
+}
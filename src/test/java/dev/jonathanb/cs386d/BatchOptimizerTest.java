@@ -0,0 +1,31 @@
+package dev.jonathanb.cs386d;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchOptimizerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadQueryLog() throws Exception {
+        Path log = folder.newFile("workload.log").toPath();
+        Files.writeString(log, """
+                SELECT MIN(t.title) FROM title AS t, movie_companies AS mc WHERE t.id = mc.movie_id AND t.production_year > 2000;
+                SELECT MIN(t.title)
+                FROM title AS t, cast_info AS ci, name AS n
+                WHERE t.id = ci.movie_id AND ci.person_id = n.id AND n.name LIKE '%Bert%';
+                """);
+        Map<String, String> queries = BatchOptimizer.readQueries(log);
+        assertEquals(List.of("workload_1", "workload_2"), List.copyOf(queries.keySet()));
+        assertEquals(3, BenchmarkQuery.parseFromString(queries.get("workload_2")).relations().size());
+    }
+}
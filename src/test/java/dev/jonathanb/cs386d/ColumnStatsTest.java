@@ -2,6 +2,7 @@ package dev.jonathanb.cs386d;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -136,5 +137,54 @@ public class ColumnStatsTest {
         assertEquals(Set.of(new HistogramValue("B")), joinStats.mostCommon().keySet());
     }
 
+    @Test
+    public void testMostCommonValuesMerge() {
+        // Interleaved values with several matches, so the merge has to skip ahead on both sides.
+        ColumnStats left = new ColumnStats(0.1, 20, Map.of(new HistogramValue(1), 0.1, new HistogramValue(3), 0.2,
+                new HistogramValue(5), 0.05, new HistogramValue(8), 0.15), List.of());
+        ColumnStats right = new ColumnStats(0, 12, Map.of(new HistogramValue(2L), 0.3, new HistogramValue(3L), 0.1,
+                new HistogramValue(8L), 0.2, new HistogramValue(9L), 0.1), List.of());
+
+        // 3 and 8 are shared; 1 and 5 are only on the left, 2 and 9 only on the right.
+        double shared = 0.2 * 0.1 + 0.15 * 0.2;
+        double leftOnly = (0.1 + 0.05) * (0.3 / 8) * (10.0 / 18);
+        double rightOnly = (0.3 + 0.1) * (0.4 / 16);
+        double rest = 0.4 * 0.3 / (20 - 6);
+        double selectivity = shared + leftOnly + rightOnly + rest;
+        assertEquals(selectivity, left.join(right).selectivity(), 1e-9);
+        assertEquals(selectivity, right.join(left).selectivity(), 1e-9);
+        Map<HistogramValue, Double> joined = left.join(right).newStats().mostCommon();
+        assertEquals(Set.of(new HistogramValue(3), new HistogramValue(8)), joined.keySet());
+        assertEquals(0.2 * 0.1 / selectivity, joined.get(new HistogramValue(3)), 1e-9);
+        assertEquals(0.15 * 0.2 / selectivity, joined.get(new HistogramValue(8)), 1e-9);
+
+        assertEquals(0.35 + 0.55 * 10.0 / 18, left.semijoin(right).selectivity(), 1e-9);
+        Map<HistogramValue, Double> kept = left.semijoin(right).newStats().mostCommon();
+        assertEquals(Set.of(new HistogramValue(3), new HistogramValue(8)), kept.keySet());
+        assertEquals(0.2 / 0.75, kept.get(new HistogramValue(3)), 1e-9);
+        assertEquals(0.15 / 0.75, kept.get(new HistogramValue(8)), 1e-9);
+    }
+
+    private static ColumnStats uniform(int from, int to, Map<HistogramValue, Double> mostCommon) {
+        List<HistogramValue> bounds = new ArrayList<>();
+        for (int i = 0; i <= 10; i++) {
+            bounds.add(new HistogramValue(from + (to - from) * i / 10));
+        }
+        double common = mostCommon.values().stream().mapToDouble(x -> x).sum();
+        return new ColumnStats(0, to - from + mostCommon.size(), mostCommon, HistogramRange.makeRange(bounds, to - from, 1 - common));
+    }
 
+    @Test
+    public void testJoinAlignsHistograms() {
+        // Only a tenth of each column's range overlaps the other's, so only a tenth of each side can match.
+        ColumnStats left = uniform(0, 1000, Map.of()), right = uniform(900, 1900, Map.of());
+        assertEquals(0.1 * 0.1 / 100, left.join(right).selectivity(), 1e-12);
+        assertEquals(0.1 * 0.1 / 100, right.join(left).selectivity(), 1e-12);
+        assertEquals(1.0 / 1000, left.join(left).selectivity(), 1e-12);
+        assertEquals(0, left.join(uniform(2000, 3000, Map.of())).selectivity(), 1e-12);
+
+        // A common value outside the other column's range has nothing to join with.
+        ColumnStats skewed = uniform(0, 1000, Map.of(new HistogramValue(5000), 0.5));
+        assertEquals(left.join(left).selectivity() * 0.5, skewed.join(left).selectivity(), 1e-12);
+    }
 }
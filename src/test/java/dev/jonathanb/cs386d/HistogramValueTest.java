@@ -0,0 +1,43 @@
+package dev.jonathanb.cs386d;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistogramValueTest {
+    @Test
+    public void testStringOrder() {
+        List<String> strings = List.of("", "a", "ab", "abcd", "abcde", "abcdf", "abd", "b", "The Godfather", "The Godfather II", "\uffff");
+        for (String a : strings) {
+            for (String b : strings) {
+                assertEquals(a + " vs " + b, Integer.signum(a.compareTo(b)),
+                        Integer.signum(new HistogramValue(a).compareTo(new HistogramValue(b))));
+            }
+        }
+    }
+
+    @Test
+    public void testNumbersCompareByValue() {
+        assertEquals(new HistogramValue(5), new HistogramValue(5L));
+        assertEquals(new HistogramValue(5L).hashCode(), new HistogramValue(new BigDecimal("5.00")).hashCode());
+        assertEquals(new HistogramValue(new BigDecimal("2.50")), new HistogramValue(2.5));
+        assertTrue(new HistogramValue(2).compareTo(new HistogramValue(2.5)) < 0);
+        assertTrue(new HistogramValue(Long.MAX_VALUE).compareTo(new HistogramValue(new BigDecimal(Long.MAX_VALUE).add(BigDecimal.ONE))) < 0);
+    }
+
+    @Test
+    public void testFractionBetween() {
+        assertEquals(0.25, new HistogramValue(25).fractionBetween(new HistogramValue(0), new HistogramValue(100)), 1e-9);
+        // The shared prefix doesn't limit the precision.
+        double fraction = new HistogramValue("The Godfather M").fractionBetween(new HistogramValue("The Godfather A"), new HistogramValue("The Godfather Z"));
+        assertEquals(12.0 / 25, fraction, 1e-6);
+    }
+
+    @Test
+    public void testInterning() {
+        assertSame(HistogramValue.of("title"), HistogramValue.of(new String("title")));
+    }
+}
@@ -0,0 +1,240 @@
+package dev.jonathanb.cs386d;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class JoinOptimizerTest {
+    private static TableRef table(String name) {
+        return new TableRef(name, new Table("test", name));
+    }
+
+    // Each edge joins column "<other>_id" on one side with "id" on the other, with some skew in the MCVs.
+    private static BenchmarkQuery makeQuery(int numRelations, int[][] edges, Map<TableRef, RelationStats> statsOut) {
+        List<TableRef> tables = new ArrayList<>();
+        for (int i = 0; i < numRelations; i++) {
+            tables.add(table("r" + i));
+        }
+
+        Map<TableRef, Map<Column, ColumnStats>> columns = new HashMap<>();
+        Set<JoinPredicate> predicates = new HashSet<>();
+        for (int[] edge : edges) {
+            Column a = new Column(tables.get(edge[0]), "r" + edge[1] + "_id");
+            Column b = new Column(tables.get(edge[1]), "id");
+            predicates.add(new JoinPredicate(a, b));
+            long distinct = 100L * (edge[1] + 1);
+            columns.computeIfAbsent(a.table(), x -> new HashMap<>()).put(a,
+                    new ColumnStats(0.1, distinct / 2, Map.of(new HistogramValue(1L), 0.2 + 0.01 * edge[0]), List.of()));
+            columns.computeIfAbsent(b.table(), x -> new HashMap<>()).put(b,
+                    new ColumnStats(0, distinct, Map.of(), List.of()));
+        }
+        for (int i = 0; i < numRelations; i++) {
+            double numRows = 1000.0 * (1 + (i * 7) % 5) * (i + 1);
+            statsOut.put(tables.get(i), new RelationStats(numRows, columns.getOrDefault(tables.get(i), Map.of())));
+        }
+        return new BenchmarkQuery(new HashSet<>(tables), predicates, Set.of());
+    }
+
+    private static final int[][] CHAIN = {{0, 1}, {1, 2}, {2, 3}, {3, 4}, {4, 5}, {5, 6}};
+    private static final int[][] STAR = {{0, 1}, {0, 2}, {0, 3}, {0, 4}, {0, 5}, {0, 6}};
+    private static final int[][] CYCLE = {{0, 1}, {1, 2}, {2, 3}, {3, 4}, {4, 5}, {5, 0}, {2, 5}, {6, 3}};
+
+    private static OperationTree optimize(JoinOptimizer optimizer, int[][] edges) {
+        Map<TableRef, RelationStats> stats = new HashMap<>();
+        BenchmarkQuery query = makeQuery(7, edges, stats);
+        return optimizer.optimize(stats, query.predicates(), query.valuePredicates());
+    }
+
+    private static void assertSameCost(JoinOptimizer expected, JoinOptimizer actual, int[][] edges) {
+        OperationTree expectedTree = optimize(expected, edges);
+        OperationTree actualTree = optimize(actual, edges);
+        assertNotNull(expectedTree);
+        assertNotNull(actualTree);
+        assertEquals(7, actualTree.getTablesSet().size());
+        assertEquals(expectedTree.getTotalCost(), actualTree.getTotalCost(), expectedTree.getTotalCost() * 1e-9);
+    }
+
+    private static void assertSamePlan(JoinOptimizer expected, JoinOptimizer actual, int[][] edges) {
+        assertEquals(optimize(expected, edges).toString(), optimize(actual, edges).toString());
+    }
+
+    @Test
+    public void testParallelMatchesSerial() {
+        JoinOptimizer parallel = new JoinOptimizer(JoinOptimizer.Enumeration.DP_SIZE);
+        parallel.setParallelism(4);
+        for (int[][] edges : List.of(CHAIN, STAR, CYCLE)) {
+            assertSamePlan(new JoinOptimizer(JoinOptimizer.Enumeration.DP_SIZE), parallel, edges);
+        }
+    }
+
+    @Test
+    public void testCsgCmpMatchesBySize() {
+        for (int[][] edges : List.of(CHAIN, STAR, CYCLE)) {
+            assertSameCost(new JoinOptimizer(JoinOptimizer.Enumeration.DP_SIZE), new JoinOptimizer(JoinOptimizer.Enumeration.DP_CCP), edges);
+        }
+    }
+
+    private static JoinOptimizer bushy(JoinOptimizer.Enumeration enumeration, int parallelism) {
+        JoinOptimizer optimizer = new JoinOptimizer(enumeration);
+        optimizer.setBushy(true);
+        optimizer.setParallelism(parallelism);
+        return optimizer;
+    }
+
+    @Test
+    public void testBushyEnumerations() {
+        for (int[][] edges : List.of(CHAIN, STAR, CYCLE)) {
+            assertSamePlan(bushy(JoinOptimizer.Enumeration.DP_SIZE, 1), bushy(JoinOptimizer.Enumeration.DP_CCP, 1), edges);
+            assertSamePlan(bushy(JoinOptimizer.Enumeration.DP_SIZE, 1), bushy(JoinOptimizer.Enumeration.DP_SIZE, 4), edges);
+            double leftDeepCost = optimize(new JoinOptimizer(), edges).getTotalCost();
+            assertTrue(optimize(bushy(JoinOptimizer.Enumeration.DP_CCP, 1), edges).getTotalCost() <= leftDeepCost);
+        }
+    }
+
+    @Test
+    public void testHeuristicsAreNoBetterThanExhaustive() {
+        for (int[][] edges : List.of(CHAIN, STAR, CYCLE)) {
+            double leftDeepCost = optimize(new JoinOptimizer(JoinOptimizer.Enumeration.DP_CCP), edges).getTotalCost();
+            double bushyCost = optimize(bushy(JoinOptimizer.Enumeration.DP_CCP, 1), edges).getTotalCost();
+            assertTrue(optimize(new JoinOptimizer(JoinOptimizer.Enumeration.GOO), edges).getTotalCost() >= leftDeepCost);
+            assertTrue(optimize(bushy(JoinOptimizer.Enumeration.GOO, 1), edges).getTotalCost() >= bushyCost);
+            OperationTree ordered = optimize(new JoinOptimizer(JoinOptimizer.Enumeration.IKKBZ), edges);
+            // A cyclic graph is ordered over a spanning tree, whose joins skip different edges of the cycles than the
+            // exhaustive plan's, so the estimates can't be compared there.
+            assertEquals(7, ordered.getTablesSet().size());
+            if (edges != CYCLE) {
+                assertTrue(ordered.getTotalCost() >= leftDeepCost);
+            }
+        }
+    }
+
+    @Test
+    public void testAdaptiveHandlesLargeQueries() {
+        int size = 100;
+        int[][] chain = new int[size - 1][];
+        int[][] cyclic = new int[size][];
+        for (int i = 0; i < size - 1; i++) {
+            chain[i] = new int[]{i, i + 1};
+            cyclic[i] = new int[]{i, i + 1};
+        }
+        cyclic[size - 1] = new int[]{size - 1, 0};
+
+        for (int[][] edges : List.of(chain, cyclic)) {
+            Map<TableRef, RelationStats> stats = new HashMap<>();
+            BenchmarkQuery query = makeQuery(size, edges, stats);
+            OperationTree tree = new JoinOptimizer(JoinOptimizer.Enumeration.ADAPTIVE).optimize(stats, query.predicates(), query.valuePredicates());
+            assertEquals(size, tree.getTablesSet().size());
+        }
+    }
+
+    @Test
+    public void testBranchAndBound() {
+        long totalPruned = 0;
+        for (int[][] edges : List.of(CHAIN, STAR, CYCLE)) {
+            for (JoinOptimizer.Enumeration enumeration : List.of(JoinOptimizer.Enumeration.DP_SIZE, JoinOptimizer.Enumeration.DP_CCP)) {
+                JoinOptimizer optimizer = bushy(enumeration, 1);
+                optimizer.setBranchAndBound(true);
+                double greedyCost = optimize(bushy(JoinOptimizer.Enumeration.GOO, 1), edges).getTotalCost();
+                double prunedCost = optimize(optimizer, edges).getTotalCost();
+                assertTrue(prunedCost <= greedyCost);
+                assertEquals(optimize(bushy(enumeration, 1), edges).getTotalCost(), prunedCost, prunedCost * 1e-9);
+                totalPruned += optimizer.getMetrics().getCandidatesPruned();
+            }
+        }
+        assertTrue(totalPruned > 0);
+    }
+
+    @Test
+    public void testColumnPruning() {
+        OperationTree plain = optimize(new JoinOptimizer(JoinOptimizer.Enumeration.DP_CCP), CYCLE);
+
+        // Columns that no predicate uses shouldn't change the plan, and shouldn't be carried through it either.
+        Map<TableRef, RelationStats> stats = new HashMap<>();
+        BenchmarkQuery query = makeQuery(7, CYCLE, stats);
+        stats.replaceAll((table, relation) -> {
+            Map<Column, ColumnStats> columns = new HashMap<>(relation.columnStats());
+            columns.put(new Column(table, "name"), new ColumnStats(0, 10, Map.of(), List.of()));
+            return new RelationStats(relation.numRows(), columns);
+        });
+        OperationTree pruned = new JoinOptimizer(JoinOptimizer.Enumeration.DP_CCP).optimize(stats, query.predicates(), query.valuePredicates());
+
+        assertEquals(plain.toString(), pruned.toString());
+        assertTrue(pruned.getStats().columnStats().isEmpty());
+        OperationTree.Join root = (OperationTree.Join) pruned;
+        OperationTree right = root.getRightTree();
+        for (Column column : right.getStats().columnStats().keySet()) {
+            assertTrue(column + " isn't joined to anything outside " + right.getTablesSet(),
+                    query.predicates().stream().anyMatch(p -> p.a().equals(column) && !right.containsTable(p.b().table())
+                            || p.b().equals(column) && !right.containsTable(p.a().table())));
+        }
+    }
+
+    @Test
+    public void testImpliedPredicates() {
+        TableRef t = table("t"), mc = table("mc"), ci = table("ci");
+        Column id = new Column(t, "id"), mcMovie = new Column(mc, "movie_id"), ciMovie = new Column(ci, "movie_id");
+        Set<JoinPredicate> predicates = Set.of(new JoinPredicate(id, mcMovie), new JoinPredicate(id, ciMovie));
+        Set<JoinPredicate> closed = new EquivalenceClasses(predicates).withImpliedPredicates(predicates);
+        assertEquals(3, closed.size());
+        assertTrue(closed.stream().anyMatch(p -> p.implied() && Set.of(p.a(), p.b()).equals(Set.of(mcMovie, ciMovie))));
+
+        // Every movie id matches a thousand rows of t, so the two small tables should be joined with each other first,
+        // which is only possible through the implied predicate.
+        Map<TableRef, RelationStats> stats = new HashMap<>();
+        stats.put(t, new RelationStats(1e6, Map.of(id, new ColumnStats(0, 1000, Map.of(), List.of()))));
+        stats.put(mc, new RelationStats(100, Map.of(mcMovie, new ColumnStats(0, 10, Map.of(), List.of()))));
+        stats.put(ci, new RelationStats(100, Map.of(ciMovie, new ColumnStats(0, 10, Map.of(), List.of()))));
+        JoinOptimizer optimizer = new JoinOptimizer(JoinOptimizer.Enumeration.DP_CCP);
+        optimizer.setBushy(true);
+        OperationTree.Join root = (OperationTree.Join) optimizer.optimize(stats, predicates, Set.of());
+        OperationTree.Join inner = (OperationTree.Join) (root.getLeftTree() instanceof OperationTree.Join ? root.getLeftTree() : root.getRightTree());
+        assertEquals(Set.of(mc, ci), inner.getTablesSet());
+    }
+
+    @Test
+    public void testIncrementalReoptimize() {
+        for (boolean bushy : new boolean[]{false, true}) {
+            Map<TableRef, RelationStats> stats = new HashMap<>();
+            BenchmarkQuery query = makeQuery(7, CYCLE, stats);
+            TableRef changed = table("r3");
+            Map<TableRef, RelationStats> updated = new HashMap<>(stats);
+            updated.put(changed, new RelationStats(stats.get(changed).numRows() * 1000, stats.get(changed).columnStats()));
+
+            JoinOptimizer incremental = new JoinOptimizer(JoinOptimizer.Enumeration.DP_CCP);
+            incremental.setBushy(bushy);
+            incremental.setIncremental(true);
+            incremental.optimize(new HashMap<>(stats), query.predicates(), query.valuePredicates());
+            long fullJoins = incremental.getMetrics().getJoinsComputed();
+            OperationTree reoptimized = incremental.reoptimize(Map.of(changed, updated.get(changed)));
+
+            JoinOptimizer fresh = new JoinOptimizer(JoinOptimizer.Enumeration.DP_CCP);
+            fresh.setBushy(bushy);
+            assertEquals(fresh.optimize(updated, query.predicates(), query.valuePredicates()).toString(), reoptimized.toString());
+            assertTrue(incremental.getMetrics().getJoinsComputed() < fullJoins);
+        }
+    }
+
+    @Test
+    public void testHashJoinCostModel() {
+        HashJoinCostModel model = new HashJoinCostModel(1 << 20);
+        RelationStats small = new RelationStats(1000, Map.of(), 100);
+        RelationStats large = new RelationStats(1_000_000, Map.of(), 100);
+        RelationStats result = new RelationStats(1000, Map.of(), 200);
+        // Building is dearer than probing, and a build that doesn't fit in memory is dearer still.
+        assertTrue(model.joinCost(large, small, result) < model.joinCost(small, large, result));
+        assertTrue(new HashJoinCostModel(1L << 30).joinCost(small, large, result) < model.joinCost(small, large, result));
+        // A filter saves emitting rows, but every page of the table is still read.
+        assertEquals(Math.ceil(1_000_000 * 132 / 8192.0) + 1000 * 0.01, model.scanCost(large, small), 1e-9);
+
+        for (int[][] edges : List.of(CHAIN, STAR, CYCLE)) {
+            JoinOptimizer bySize = bushy(JoinOptimizer.Enumeration.DP_SIZE, 1), csgCmp = bushy(JoinOptimizer.Enumeration.DP_CCP, 1);
+            bySize.setCostModel(model);
+            csgCmp.setCostModel(model);
+            assertSamePlan(bySize, csgCmp, edges);
+        }
+    }
+}
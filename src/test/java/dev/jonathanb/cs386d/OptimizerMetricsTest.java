@@ -0,0 +1,53 @@
+package dev.jonathanb.cs386d;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OptimizerMetricsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMetricsAndEvents() throws Exception {
+        WorkloadGenerator.Workload workload = new WorkloadGenerator(2).generate(WorkloadGenerator.Shape.STAR, 6);
+        JoinOptimizer optimizer = new JoinOptimizer(JoinOptimizer.Enumeration.DP_SIZE);
+        OptimizerMetrics metrics = new OptimizerMetrics();
+        Path file = folder.getRoot().toPath().resolve("optimizer.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("dev.jonathanb.cs386d.OptimizerPhase");
+            recording.enable("dev.jonathanb.cs386d.Optimization");
+            recording.start();
+            try (OptimizerMetrics.Timer ignored = metrics.time(OptimizerMetrics.Phase.STATS_FETCH)) {
+                Thread.sleep(1);
+            }
+            optimizer.optimize(new HashMap<>(workload.stats()), workload.query().predicates(), workload.query().valuePredicates(), metrics);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        assertEquals(JoinOptimizer.Enumeration.DP_SIZE, metrics.getEnumeration());
+        assertTrue(metrics.getNanos(OptimizerMetrics.Phase.STATS_FETCH) > 0);
+        assertTrue(metrics.getNanos(OptimizerMetrics.Phase.ENUMERATION) > 0);
+        assertEquals(List.of(2, 3, 4, 5, 6), List.copyOf(metrics.getLevelNanos().keySet()));
+        // The left-deep plans of a star are the center plus any subset of the other relations, plus the base relations.
+        assertEquals(6 + 31, metrics.getMemoSize());
+        assertTrue(metrics.getJoinsComputed() >= metrics.getCandidatesMerged());
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertEquals(1, events.stream().filter(e -> e.getEventType().getName().equals("dev.jonathanb.cs386d.Optimization")
+                && e.getLong("joinsComputed") == metrics.getJoinsComputed()).count());
+        // STATS_FETCH, PREDICATES, ENUMERATION and one per level.
+        assertEquals(3 + 5, events.stream().filter(e -> e.getEventType().getName().equals("dev.jonathanb.cs386d.OptimizerPhase")).count());
+    }
+}
@@ -0,0 +1,64 @@
+package dev.jonathanb.cs386d;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class PlanCacheTest {
+    private static final WorkloadGenerator.Workload STAR = new WorkloadGenerator(1).generate(WorkloadGenerator.Shape.STAR, 6);
+
+    private static Set<ValuePredicate> selection(WorkloadGenerator.Workload workload, long value) {
+        TableRef relation = workload.query().relations().stream().filter(r -> r.alias().equals("r1")).findAny().orElseThrow();
+        return Set.of(new ValuePredicate.Equality(new Column(relation, "id"), Set.of(HistogramValue.of(value)), false));
+    }
+
+    private static OperationTree optimize(PlanCache cache, WorkloadGenerator.Workload workload, Set<ValuePredicate> valuePredicates) {
+        return cache.optimize(new JoinOptimizer(JoinOptimizer.Enumeration.DP_CCP), new HashMap<>(workload.stats()), workload.query().predicates(), valuePredicates);
+    }
+
+    @Test
+    public void testRecostMatchesOptimize() {
+        JoinOptimizer optimizer = new JoinOptimizer(JoinOptimizer.Enumeration.DP_CCP);
+        Set<ValuePredicate> valuePredicates = selection(STAR, 5);
+        OperationTree plan = optimizer.optimize(new HashMap<>(STAR.stats()), STAR.query().predicates(), valuePredicates);
+        OperationTree recosted = optimizer.recost(plan, new HashMap<>(STAR.stats()), STAR.query().predicates(), valuePredicates);
+        assertEquals(plan.toString(), recosted.toString());
+    }
+
+    @Test
+    public void testHitIgnoresLiterals() {
+        PlanCache cache = new PlanCache(10, 0.5);
+        OperationTree first = optimize(cache, STAR, selection(STAR, 5));
+        OperationTree second = optimize(cache, STAR, selection(STAR, 7));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(first.getTablesSet(), second.getTablesSet());
+        assertEquals(first.getTotalCost(), second.getTotalCost(), first.getTotalCost() * 0.5);
+    }
+
+    @Test
+    public void testReoptimizesOnDrift() {
+        PlanCache cache = new PlanCache(10, 0.01);
+        // Same shape and columns, different stats.
+        WorkloadGenerator.Workload other = new WorkloadGenerator(2).generate(WorkloadGenerator.Shape.STAR, 6);
+        optimize(cache, STAR, Set.of());
+        optimize(cache, other, Set.of());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getReoptimizations());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        PlanCache cache = new PlanCache(1, 0.5);
+        WorkloadGenerator.Workload chain = new WorkloadGenerator(1).generate(WorkloadGenerator.Shape.CHAIN, 6);
+        optimize(cache, STAR, Set.of());
+        optimize(cache, chain, Set.of());
+        optimize(cache, STAR, Set.of());
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.getMisses());
+    }
+}
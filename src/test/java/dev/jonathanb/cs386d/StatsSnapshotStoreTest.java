@@ -0,0 +1,51 @@
+package dev.jonathanb.cs386d;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StatsSnapshotStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Table table = new Table("imdb", "title");
+        TableRef original = new TableRef("title", table);
+        TableRef aliased = new TableRef("t", table);
+        ColumnStats id = new ColumnStats(0, 1000, Map.of(),
+                HistogramRange.makeRange(List.of(new HistogramValue(1), new HistogramValue(500L), new HistogramValue(1000)), 1000, 1));
+        ColumnStats title = new ColumnStats(0.1, 900,
+                Map.of(new HistogramValue("Hamlet"), 0.05, new HistogramValue("Macbeth's Tragedy"), 0.02), List.of());
+        ColumnStats rating = new ColumnStats(0.3, 50, Map.of(new HistogramValue(new BigDecimal("7.25")), 0.1), List.of());
+        RelationStats stats = new RelationStats(1000, Map.of(
+                new Column(original, "id"), id,
+                new Column(original, "title"), title,
+                new Column(original, "rating"), rating
+        ), 48);
+
+        StatsSnapshotStore store = new StatsSnapshotStore(folder.getRoot().toPath());
+        StatsSnapshotStore.Freshness freshness = new StatsSnapshotStore.Freshness(1234, 56);
+        store.save(table, freshness, stats);
+
+        // Columns are bound to whichever relation asked for them.
+        RelationStats loaded = store.load(aliased, freshness);
+        assertEquals(new RelationStats(1000, Map.of(
+                new Column(aliased, "id"), id,
+                new Column(aliased, "title"), title,
+                new Column(aliased, "rating"), rating
+        ), 48), loaded);
+        assertEquals(loaded, store.load(aliased, null));
+
+        assertNull(store.load(aliased, new StatsSnapshotStore.Freshness(1235, 56)));
+        assertNull(store.load(new TableRef("n", new Table("imdb", "name")), null));
+    }
+}
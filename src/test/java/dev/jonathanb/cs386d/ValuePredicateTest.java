@@ -0,0 +1,144 @@
+package dev.jonathanb.cs386d;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ValuePredicateTest {
+    private static final Column TITLE = new Column(new TableRef("t", new Table("imdb", "title")), "title");
+
+    // 10% null, two common titles, and the rest spread over 101 bounds of three-letter strings.
+    private static ColumnStats titles() {
+        List<HistogramValue> bounds = new ArrayList<>();
+        for (int i = 0; i <= 100; i++) {
+            bounds.add(new HistogramValue("" + (char) ('a' + i / 26 % 26) + (char) ('a' + i % 26) + (i % 10 == 0 ? " Champion" : "")));
+        }
+        bounds.sort(null);
+        return new ColumnStats(0.1, 1002, Map.of(new HistogramValue("The Champion"), 0.2, new HistogramValue("Hamlet"), 0.1),
+                HistogramRange.makeRange(bounds, 1000, 0.6));
+    }
+
+    @Test
+    public void testLikePattern() {
+        assertTrue(LikePattern.compile("%Champion%").matches("The Champion"));
+        assertFalse(LikePattern.compile("%Champion%").matches("Champ"));
+        assertTrue(LikePattern.compile("The%").matches("The Champion"));
+        assertTrue(LikePattern.compile("%a%a%").matches("banana"));
+        assertFalse(LikePattern.compile("%an%an%an%").matches("banana"));
+        assertTrue(LikePattern.compile("H_mlet").matches("Hamlet"));
+        assertFalse(LikePattern.compile("100\\%").matches("1000"));
+        assertTrue(LikePattern.compile("100\\%").matches("100%"));
+        assertTrue(LikePattern.compile("The%").isPrefixOnly());
+        assertEquals("The", LikePattern.compile("The%").prefix());
+        assertTrue(LikePattern.compile("Hamlet").isExact());
+        assertTrue(LikePattern.compile("%x%") == LikePattern.compile("%x%"));
+    }
+
+    @Test
+    public void testLikeSelectivity() {
+        ColumnStats stats = titles();
+        // The common value matches outright; 11 of the 101 bounds contain "Champion".
+        ColumnSelectivity contains = new ValuePredicate.Like(TITLE, Set.of("%Champion%"), false).getSelectivity(stats);
+        assertEquals(0.2 + 0.6 * 11 / 101, contains.selectivity(), 1e-9);
+        assertEquals(Set.of(new HistogramValue("The Champion")), contains.newStats().mostCommon().keySet());
+
+        ColumnSelectivity notContains = new ValuePredicate.Like(TITLE, Set.of("%Champion%"), true).getSelectivity(stats);
+        assertEquals(1 - 0.1 - contains.selectivity(), notContains.selectivity(), 1e-9);
+        assertEquals(Set.of(new HistogramValue("Hamlet")), notContains.newStats().mostCommon().keySet());
+
+        // "b%" covers the 26 buckets from "ba" up to "ca".
+        ColumnSelectivity prefix = new ValuePredicate.Like(TITLE, Set.of("b%"), false).getSelectivity(stats);
+        assertEquals(0.6 * 26 / 100, prefix.selectivity(), 0.01);
+
+        // The bounds a range predicate clipped the histogram to aren't values of the column, so LIKE doesn't sample them.
+        Histogram clipped = stats.buckets().clip(new HistogramValue("ab5"), new HistogramValue("cc5"));
+        List<HistogramValue> sampled = clipped.sampledBounds();
+        assertEquals(new HistogramValue("ac"), sampled.get(0));
+        assertEquals(new HistogramValue("cc"), sampled.get(sampled.size() - 1));
+        assertEquals(sampled, clipped.scaleTo(0.5).clip(null, new HistogramValue("cz")).sampledBounds());
+
+        // A pattern without wildcards that names a common value matches nothing else.
+        ColumnSelectivity exact = new ValuePredicate.Like(TITLE, Set.of("Hamlet"), false).getSelectivity(stats);
+        assertEquals(0.1, exact.selectivity(), 1e-9);
+        ColumnSelectivity rare = new ValuePredicate.Like(TITLE, Set.of("Macbeth"), false).getSelectivity(stats);
+        assertEquals(0.6 / 1000, rare.selectivity(), 1e-9);
+    }
+
+    @Test
+    public void testRangeSelectivity() {
+        List<HistogramValue> bounds = new ArrayList<>();
+        for (int year = 1900; year <= 2020; year += 10) {
+            bounds.add(new HistogramValue(year));
+        }
+        List<HistogramRange> ranges = HistogramRange.makeRange(bounds, 120, 0.9);
+        assertEquals(10, ranges.get(0).numDistinct(), 1e-9);
+        ColumnStats years = new ColumnStats(0.1, 120, Map.of(), ranges);
+        Column year = new Column(TITLE.table(), "production_year");
+
+        // Half of the 2000s bucket is below 2005, and 2005 itself gets a tenth of it.
+        double bucket = 0.9 / 12;
+        assertEquals(10.5 * bucket, new ValuePredicate.Inequality(year, new HistogramValue(2005), true, false, false).getSelectivity(years).selectivity(), 1e-9);
+        assertEquals(1.5 * bucket - bucket / 10, new ValuePredicate.Inequality(year, new HistogramValue(2005), false, false, true).getSelectivity(years).selectivity(), 1e-9);
+        ColumnSelectivity atLeast = new ValuePredicate.Inequality(year, new HistogramValue(2005), false, true, true).getSelectivity(years);
+        assertEquals(1.5 * bucket, atLeast.selectivity(), 1e-9);
+        assertEquals(15, atLeast.newStats().nDistinct());
+        assertEquals(0, new ValuePredicate.Inequality(year, new HistogramValue(1850), true, true, false).getSelectivity(years).selectivity(), 1e-9);
+        assertEquals(0.9, new ValuePredicate.Inequality(year, new HistogramValue(2050), true, false, false).getSelectivity(years).selectivity(), 1e-9);
+    }
+
+    @Test
+    public void testBetween() {
+        BenchmarkQuery query = BenchmarkQuery.parseFromString("SELECT MIN(t.title) FROM title AS t, movie_companies AS mc "
+                + "WHERE t.id = mc.movie_id AND t.production_year BETWEEN 2005 AND 2010;");
+        assertEquals(2, query.valuePredicates().size());
+        Column year = query.valuePredicates().iterator().next().getColumn();
+        List<HistogramValue> bounds = new ArrayList<>();
+        for (int y = 1900; y <= 2020; y += 10) {
+            bounds.add(new HistogramValue(y));
+        }
+        RelationStats stats = new RelationStats(12000, Map.of(year, new ColumnStats(0.1, 120, Map.of(), HistogramRange.makeRange(bounds, 120, 0.9))));
+        List<ValuePredicate> predicates = new ArrayList<>(query.valuePredicates());
+        RelationStats forward = stats, backward = stats;
+        for (int i = 0; i < predicates.size(); i++) {
+            forward = predicates.get(i).apply(forward);
+            backward = predicates.get(predicates.size() - 1 - i).apply(backward);
+        }
+        // Six of the 120 years, which hold 10800 rows between them. How much of the bounds' own frequency is counted
+        // depends on which bound is applied first.
+        assertEquals(540, forward.numRows(), 100);
+        assertEquals(540, backward.numRows(), 100);
+    }
+
+    @Test
+    public void testHistogramsPropagate() {
+        List<HistogramValue> bounds = new ArrayList<>();
+        for (int year = 1900; year <= 2020; year += 10) {
+            bounds.add(new HistogramValue(year));
+        }
+        ColumnStats years = new ColumnStats(0.1, 121, Map.of(new HistogramValue(2020), 0.1), HistogramRange.makeRange(bounds, 120, 0.8));
+        Column year = new Column(TITLE.table(), "production_year");
+
+        // Filtering twice gives the same as filtering on both bounds against the original histogram.
+        ColumnSelectivity notNull = new ValuePredicate.Null(year, true).getSelectivity(years);
+        assertEquals(0.1 / 0.9, notNull.newStats().mostCommon().get(new HistogramValue(2020)), 1e-9);
+        ColumnSelectivity after = new ValuePredicate.Inequality(year, new HistogramValue(1990), false, true, true).getSelectivity(notNull.newStats());
+        assertEquals(3, after.newStats().histogram().size());
+        assertEquals(1, after.newStats().histogram().stream().mapToDouble(HistogramRange::fractionOfElements).sum()
+                + after.newStats().mostCommon().values().stream().mapToDouble(x -> x).sum(), 1e-9);
+        ColumnSelectivity before = new ValuePredicate.Inequality(year, new HistogramValue(2005), true, false, false).getSelectivity(after.newStats());
+        assertEquals(0.8 / 12 * 1.5, notNull.selectivity() * after.selectivity() * before.selectivity(), 1e-9);
+
+        // Joining two columns over the same range keeps the shape of the values they share.
+        ColumnSelectivity joined = years.join(years);
+        assertEquals(12, joined.newStats().histogram().size());
+        assertEquals(1, joined.newStats().histogram().stream().mapToDouble(HistogramRange::fractionOfElements).sum()
+                + joined.newStats().mostCommon().values().stream().mapToDouble(x -> x).sum(), 1e-9);
+    }
+}
@@ -0,0 +1,61 @@
+package dev.jonathanb.cs386d;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class WorkloadGeneratorTest {
+    @Test
+    public void testShapes() {
+        WorkloadGenerator generator = new WorkloadGenerator(1);
+        assertEquals(9, generator.generate(WorkloadGenerator.Shape.CHAIN, 10).query().predicates().size());
+        assertEquals(9, generator.generate(WorkloadGenerator.Shape.STAR, 10).query().predicates().size());
+        assertEquals(10, generator.generate(WorkloadGenerator.Shape.CYCLE, 10).query().predicates().size());
+        assertEquals(45, generator.generate(WorkloadGenerator.Shape.CLIQUE, 10).query().predicates().size());
+        assertEquals(9, generator.generate(WorkloadGenerator.Shape.SNOWFLAKE, 10).query().predicates().size());
+        assertEquals(100, generator.generate(WorkloadGenerator.Shape.SNOWFLAKE, 100).query().relations().size());
+    }
+
+    @Test
+    public void testDeterministic() {
+        assertEquals(new WorkloadGenerator(7).generate(WorkloadGenerator.Shape.STAR, 20),
+                new WorkloadGenerator(7).generate(WorkloadGenerator.Shape.STAR, 20));
+    }
+
+    @Test
+    public void testSeedPinsRowCounts() {
+        // The same seed has to give the same workload in every JVM, not just within one.
+        WorkloadGenerator.Workload workload = new WorkloadGenerator(1).generate(WorkloadGenerator.Shape.STAR, 4);
+        double[] expected = {1e7, 7187574, 14220, 1901070};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], workload.stats().get(new TableRef("r" + i, new Table("synthetic", "r" + i))).numRows(), 0);
+        }
+    }
+
+    @Test
+    public void testForeignKeyFrequencies() {
+        WorkloadGenerator generator = new WorkloadGenerator(3);
+        generator.setSkew(1.5);
+        WorkloadGenerator.Workload workload = generator.generate(WorkloadGenerator.Shape.CHAIN, 5);
+        for (RelationStats stats : workload.stats().values()) {
+            for (ColumnStats column : stats.columnStats().values()) {
+                double total = column.mostCommon().values().stream().mapToDouble(x -> x).sum()
+                        + column.histogram().stream().mapToDouble(HistogramRange::fractionOfElements).sum();
+                assertEquals(1, total, 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testMemoSize() {
+        // Every connected subset of a chain is a run of consecutive relations.
+        WorkloadGenerator.Workload workload = new WorkloadGenerator(5).generate(WorkloadGenerator.Shape.CHAIN, 8);
+        for (JoinOptimizer.Enumeration enumeration : new JoinOptimizer.Enumeration[]{JoinOptimizer.Enumeration.DP_SIZE, JoinOptimizer.Enumeration.DP_CCP}) {
+            JoinOptimizer optimizer = new JoinOptimizer(enumeration);
+            optimizer.optimize(new HashMap<>(workload.stats()), workload.query().predicates(), workload.query().valuePredicates());
+            assertEquals(enumeration.toString(), 8 * 9 / 2, optimizer.getMetrics().getMemoSize());
+        }
+    }
+}